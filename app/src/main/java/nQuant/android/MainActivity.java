@@ -30,21 +30,21 @@ import androidx.annotation.NonNull;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 
-import com.android.nQuant.PnnLABQuantizer;
-import com.android.nQuant.PnnQuantizer;
+import com.android.nQuant.ProgressiveQuantizer;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 
 public class MainActivity extends AppCompatActivity {
     Button button;
     ImageView image;
     String filePath;
+    CompletableFuture<Bitmap> conversion;
 
     ActivityResultLauncher<Intent> activityResultLauncher = registerForActivityResult(
     new ActivityResultContracts.StartActivityForResult(),
@@ -101,6 +101,13 @@ public class MainActivity extends AppCompatActivity {
         addListenerOnButton();
     }
 
+    @Override
+    protected void onDestroy() {
+        if (conversion != null)
+            conversion.cancel(false);
+        super.onDestroy();
+    }
+
     public AlertDialog createProgressDialog() {
         int llPadding = 30;
         LinearLayout ll = new LinearLayout(this);
@@ -187,12 +194,22 @@ public class MainActivity extends AppCompatActivity {
                 final AlertDialog dialog = createProgressDialog();
                 final Handler handler = new Handler(getMainLooper());
 
-                final ExecutorService executor = Executors.newSingleThreadExecutor();
-                executor.execute(() -> {
-                    try {
-                        PnnQuantizer pnnQuantizer = new PnnQuantizer(filePath);
-                        final Bitmap result = pnnQuantizer.convert(256, true);
+                ProgressiveQuantizer progressiveQuantizer = new ProgressiveQuantizer(256, true, false);
+                // Large photos fall back on tiles and bounded lookups rather than running out of memory
+                progressiveQuantizer.setMemoryBudget(Runtime.getRuntime().maxMemory() / 2);
+                conversion = progressiveQuantizer.convertAsync(filePath, new ProgressiveQuantizer.Callback() {
+                    @Override
+                    public void onPreview(Bitmap preview) {
+                        handler.post(() -> {
+                            image.setImageBitmap(preview);
+
+                            if(dialog.isShowing())
+                                dialog.dismiss();
+                        });
+                    }
 
+                    @Override
+                    public void onResult(Bitmap result) {
                         handler.post(() -> {
                             image.setImageBitmap(result);
 
@@ -202,11 +219,14 @@ public class MainActivity extends AppCompatActivity {
                             if(dialog.isShowing())
                                 dialog.dismiss();
                         });
-                    } catch (Exception ex) {
-                        ex.printStackTrace();
-                        throw new RuntimeException(ex);
                     }
                 });
+                conversion.exceptionally(ex -> {
+                    // A canceled conversion means the activity went away, nobody waits for the result
+                    if (!(ex instanceof CancellationException))
+                        ex.printStackTrace();
+                    return null;
+                });
             } catch (Throwable t) {
                 t.printStackTrace();
                 Toast.makeText(MainActivity.this, "Error! " + t.getMessage(), Toast.LENGTH_SHORT).show();
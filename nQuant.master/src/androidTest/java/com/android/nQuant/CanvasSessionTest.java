@@ -0,0 +1,95 @@
+package com.android.nQuant;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.Rect;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+@RunWith(AndroidJUnit4.class)
+public class CanvasSessionTest {
+	private static Bitmap createCanvas(boolean semiTransparent) {
+		final int width = 320, height = 283;
+		int[] pixels = new int[width * height];
+		Random random = new Random(5);
+		for (int y = 0; y < height; ++y) {
+			for (int x = 0; x < width; ++x) {
+				final int alpha = !semiTransparent ? 0xFF : x < 40 ? 0 : 60 + x * 195 / width;
+				pixels[x + y * width] = Color.argb(alpha, x * 255 / width, y * 255 / height, ((x + y) / 4 + random.nextInt(30)) & 0xFF);
+			}
+		}
+		return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+	}
+
+	private static int[] getPixels(Bitmap bitmap) {
+		int[] pixels = new int[bitmap.getWidth() * bitmap.getHeight()];
+		bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+		return pixels;
+	}
+
+	/* Dithering the whole canvas again onto the same palette has to give the full conversion back */
+	private static void assertNoOpUpdate(boolean semiTransparent, int nMaxColors, boolean dither) throws Exception {
+		Bitmap canvas = createCanvas(semiTransparent);
+		int[] expected = getPixels(new PnnQuantizer(canvas).convert(nMaxColors, dither));
+
+		CanvasSession session = new CanvasSession(canvas, nMaxColors, dither, false);
+		assertArrayEquals(expected, getPixels(session.getResult()));
+		session.update(canvas, new Rect(0, 0, canvas.getWidth(), canvas.getHeight()));
+		assertFalse(session.isPaletteRebuilt());
+		assertArrayEquals(expected, getPixels(session.getResult()));
+	}
+
+	/* A rectangle dithered again, the way CanvasSession.update does, keeps the blue noise strength of the full conversion
+	 * even though the colors it was worked out from are gone, so no seam shows at the edge of the rectangle */
+	private static void assertRectBlueNoiseWeight(boolean semiTransparent, int nMaxColors) throws Exception {
+		Bitmap canvas = createCanvas(semiTransparent);
+		final List<Float> weights = new ArrayList<>();
+		PnnLABQuantizer quantizer = new PnnLABQuantizer(canvas);
+		quantizer.ditherer = (width, height, pixels, palette, ditherable, saliencies, weight, dither) -> {
+			int[] qPixels = Ditherer.BLUE_NOISE.dither(width, height, pixels, palette, ditherable, saliencies, weight, dither);
+			weights.add(ditherable.getBlueNoiseWeight(palette));
+			return qPixels;
+		};
+		quantizer.convert(nMaxColors, false);
+
+		final int left = 64, top = 64, w = 128, h = 128;
+		int[] rect = new int[w * h];
+		canvas.getPixels(rect, 0, w, left, top, w, h);
+		quantizer.setPixels(rect, left, top, w, h);
+		quantizer.ditherRect(left, top, w, h, false);
+		assertEquals(2, weights.size());
+		assertEquals(weights.get(0), weights.get(1), 0);
+	}
+
+	@Test
+	public void noOpUpdateOfOpaqueCanvas() throws Exception {
+		assertNoOpUpdate(false, 64, true);
+	}
+
+	@Test
+	public void noOpUpdateOfSemiTransparentCanvas() throws Exception {
+		for (int nMaxColors : new int[] { 256, 64, 16 }) {
+			assertNoOpUpdate(true, nMaxColors, true);
+			assertNoOpUpdate(true, nMaxColors, false);
+		}
+	}
+
+	@Test
+	public void rectKeepsLabBlueNoiseWeight() throws Exception {
+		for (int nMaxColors : new int[] { 256, 64, 16 }) {
+			assertRectBlueNoiseWeight(false, nMaxColors);
+			assertRectBlueNoiseWeight(true, nMaxColors);
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package com.android.nQuant;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import android.graphics.Color;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+@RunWith(AndroidJUnit4.class)
+public class InverseColormapWriteTest {
+	/* The corners of the RGB cube, far enough apart that every one is the nearest entry to its own cell */
+	private static final int[] CORNERS = {
+		Color.BLACK, Color.RED, Color.GREEN, Color.BLUE, Color.YELLOW, Color.CYAN, Color.MAGENTA, Color.WHITE
+	};
+
+	private File dir;
+
+	@Before
+	public void createDir() throws IOException {
+		dir = Files.createTempDirectory("colormap").toFile();
+	}
+
+	@After
+	public void deleteDir() {
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		File file = new File(dir, "corners.icm");
+		Palette palette = new Palette(CORNERS);
+		InverseColormap.write(file, palette, false, false);
+
+		InverseColormap colormap = InverseColormap.open(file);
+		assertArrayEquals(CORNERS, colormap.getPalette().getColors());
+		assertEquals(palette.PR, colormap.getPalette().PR, 0);
+		assertEquals(palette.weight, colormap.getPalette().weight, 0);
+		for (int k = 0; k < CORNERS.length; ++k)
+			assertEquals(k, colormap.nearestColorIndex(null, CORNERS[k], 0));
+	}
+
+	/* A table written over an open one replaces it whole, and leaves no temporary file behind */
+	@Test
+	public void overwrite() throws IOException {
+		File file = new File(dir, "colors.icm");
+		InverseColormap.write(file, new Palette(CORNERS), false, false);
+		InverseColormap first = InverseColormap.open(file);
+
+		int[] grays = { Color.BLACK, Color.DKGRAY, Color.GRAY, Color.LTGRAY, Color.WHITE };
+		InverseColormap.write(file, new Palette(grays), false, false);
+		assertArrayEquals(grays, InverseColormap.open(file).getPalette().getColors());
+		assertArrayEquals(CORNERS, first.getPalette().getColors());
+		assertEquals(1, dir.listFiles().length);
+	}
+}
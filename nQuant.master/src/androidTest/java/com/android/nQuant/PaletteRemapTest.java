@@ -0,0 +1,63 @@
+package com.android.nQuant;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+@RunWith(AndroidJUnit4.class)
+public class PaletteRemapTest {
+	/* transparentColor is the color of a fully transparent strip on the left, 0 leaves it out */
+	private static Bitmap createImage(boolean semiTransparent, int transparentColor, int seed) {
+		final int width = 256, height = 192;
+		int[] pixels = new int[width * height];
+		Random random = new Random(seed);
+		for (int y = 0; y < height; ++y) {
+			for (int x = 0; x < width; ++x) {
+				final int alpha = semiTransparent ? 60 + x * 195 / width : 0xFF;
+				pixels[x + y * width] = transparentColor != 0 && x < 32 ? transparentColor : Color.argb(alpha, x * 255 / width, y * 255 / height, ((x + y) / 3 + random.nextInt(40)) & 0xFF);
+			}
+		}
+		return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+	}
+
+	private static int[] getPixels(Bitmap bitmap) {
+		int[] pixels = new int[bitmap.getWidth() * bitmap.getHeight()];
+		bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+		return pixels;
+	}
+
+	/* Images mapped one after another onto the same palette have to come out as if each had a quantizer of its own */
+	private static void assertRemapsMatch(int nMaxColors, boolean dither) throws Exception {
+		PnnQuantizer source = new PnnQuantizer(createImage(true, 0, 3));
+		source.convert(nMaxColors, dither);
+		Palette palette = source.getPalette();
+
+		Bitmap[] images = { createImage(false, 0, 7), createImage(true, 0, 11), createImage(false, 0, 7),
+			createImage(true, Color.argb(0, 0xFF, 0xFF, 0xFF), 13), createImage(true, Color.argb(0, 0x20, 0x40, 0x60), 13) };
+		PnnQuantizer quantizer = new PnnQuantizer(images[0]);
+		for (Bitmap image : images) {
+			quantizer.setBitmap(image);
+			assertArrayEquals(getPixels(new PnnQuantizer(image).convert(palette, dither)), getPixels(quantizer.convert(palette, dither)));
+		}
+	}
+
+	@Test
+	public void remapAcrossAlphaLayoutsWithDither() throws Exception {
+		for (int nMaxColors : new int[] { 256, 64, 16 })
+			assertRemapsMatch(nMaxColors, true);
+	}
+
+	@Test
+	public void remapAcrossAlphaLayoutsWithoutDither() throws Exception {
+		for (int nMaxColors : new int[] { 256, 64, 16 })
+			assertRemapsMatch(nMaxColors, false);
+	}
+}
@@ -19,6 +19,29 @@ public class BitmapUtilities {
 		return value * value;
 	}
 
+	/* Normalized histogram at 3 bits per channel from every 4th pixel, coarse enough that a slow fade does not cross bins at once */
+	static float[] colorSignature(final int[] pixels)
+	{
+		final float[] histogram = new float[512];
+		int count = 0;
+		for (int i = 0; i < pixels.length; i += 4, ++count) {
+			final int c = pixels[i];
+			++histogram[(Color.red(c) & 0xE0) << 1 | (Color.green(c) & 0xE0) >> 2 | Color.blue(c) >> 5];
+		}
+		for (int k = 0; k < histogram.length; ++k)
+			histogram[k] /= count;
+		return histogram;
+	}
+
+	/* Share of the pixels, from 0 to 1, that are in other bins of two color signatures */
+	static double signatureDrift(final float[] from, final float[] to)
+	{
+		double sum = 0;
+		for (int k = 0; k < from.length; ++k)
+			sum += Math.abs(from[k] - to[k]);
+		return sum / 2;
+	}
+
 	static int[] calcDitherPixel(int c, int[] clamp, int[] rowerr, int cursor, boolean noBias)
 	{
 		int[] ditherPixel = new int[4];
@@ -177,6 +177,18 @@ public class BlueNoise {
 		26, -34, 118, 8, -25, 22, -104, 48, -57, 80, 26, -125, -33, 1, 108, -117, 90, -62, -31, 6, -107	
 	};
 
+	/* Offset of the 64x64 mask for a phase, consecutive phases step along the R2 sequence
+	 * so the noise of neighboring frames is well spread instead of repeating or crawling */
+	public static int offsetX(final int phase)
+	{
+		return (int) ((phase * 0.7548776662466927) % 1 * 64);
+	}
+
+	public static int offsetY(final int phase)
+	{
+		return (int) ((phase * 0.5698402909980532) % 1 * 64);
+	}
+
 	public static int diffuse(final int pixel, final int qPixel, final float weight, final float strength, final int x, final int y)
 	{
 		int r_pix = Color.red(pixel);
@@ -207,13 +219,15 @@ public class BlueNoise {
 	public static int[] dither(final int width, final int height, final int[] pixels, final Integer[] palette, final Ditherable ditherable, final int[] qPixels, final float weight)
 	{
 		final float strength = 1 / 3f;
+		final int noiseX = offsetX(ditherable.getBlueNoisePhase()), noiseY = offsetY(ditherable.getBlueNoisePhase());
 		for (int y = 0; y < height; ++y) {
+			ditherable.checkProgress((float) y / height);
 			for (int x = 0; x < width; ++x) {
 				final int bidx = x + y * width;
 				int pixel = pixels[bidx];
 				int qPixel = palette[qPixels[bidx]];
 
-				int c1 = diffuse(pixel, qPixel, weight, strength, x, y);
+				int c1 = diffuse(pixel, qPixel, weight, strength, x + noiseX, y + noiseY);
 				qPixels[bidx] = palette[ditherable.nearestColorIndex(palette, c1, bidx)];
 			}
 		}
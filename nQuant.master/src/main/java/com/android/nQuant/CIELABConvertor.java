@@ -8,6 +8,14 @@ import java.math.BigDecimal;
 public class CIELABConvertor {
 	private final static char BYTE_MAX = -Byte.MIN_VALUE + Byte.MAX_VALUE;
 	private static final double XYZ_WHITE_REFERENCE_Y = 100;
+	private static final double[] SRGB_TO_LINEAR = new double[BYTE_MAX + 1];
+
+	static {
+		for (int i = 0; i < SRGB_TO_LINEAR.length; ++i) {
+			final double c = i / 255.0;
+			SRGB_TO_LINEAR[i] = c < 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4);
+		}
+	}
 
 	static class MutableDouble extends Number {
 
@@ -70,8 +78,17 @@ public class CIELABConvertor {
 
 	protected static double gammaToLinear(int channel)
 	{
-		final double c = channel / 255.0;
-		return c < 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4);
+		return SRGB_TO_LINEAR[channel];
+	}
+
+	static double luminance(final int c)
+	{
+		return SRGB_TO_LINEAR[Color.red(c)] * 0.2126 + SRGB_TO_LINEAR[Color.green(c)] * 0.7152 + SRGB_TO_LINEAR[Color.blue(c)] * 0.0722;
+	}
+
+	static double chrominanceU(final int c)
+	{
+		return -0.09991 * Color.red(c) - 0.33609 * Color.green(c) + 0.436 * Color.blue(c);
 	}
 
 	static int LAB2RGB(final Lab lab){
@@ -214,26 +231,28 @@ public class CIELABConvertor {
 
 	static double Y_Diff(final int c1, final int c2)
 	{
-		java.util.function.Function<Integer, Double> color2Y = c -> {
-			double sr = gammaToLinear(Color.red(c));
-			double sg = gammaToLinear(Color.green(c));
-			double sb = gammaToLinear(Color.blue(c));
-			return sr * 0.2126 + sg * 0.7152 + sb * 0.0722;
-		};
-		
-		double y = color2Y.apply(c1);
-		double y2 = color2Y.apply(c2);
-		return Math.abs(y2 - y) * XYZ_WHITE_REFERENCE_Y;
+		return Y_Diff(luminance(c1), c2);
+	}
+
+	/* y is the precomputed luminance of the first color */
+	static double Y_Diff(final double y, final int c2)
+	{
+		return Math.abs(luminance(c2) - y) * XYZ_WHITE_REFERENCE_Y;
+	}
+
+	/* y was stored as a float, the luminance of c2 is rounded alike so that a color still has no difference with itself */
+	static double Y_Diff(final float y, final int c2)
+	{
+		return Math.abs((float) luminance(c2) - y) * XYZ_WHITE_REFERENCE_Y;
 	}
 
 	static double U_Diff(final int c1, final int c2)
 	{
-		java.util.function.Function<Integer, Double> color2U = c -> {
-			return -0.09991 * Color.red(c) - 0.33609 * Color.green(c) + 0.436 * Color.blue(c);
-		};
-		
-		double u = color2U.apply(c1);
-		double u2 = color2U.apply(c2);
-		return Math.abs(u2 - u);
+		return U_Diff(chrominanceU(c1), c2);
+	}
+
+	static double U_Diff(final double u, final int c2)
+	{
+		return Math.abs(chrominanceU(c2) - u);
 	}
 }
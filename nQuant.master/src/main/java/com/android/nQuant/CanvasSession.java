@@ -0,0 +1,162 @@
+package com.android.nQuant;
+/* Keeps the quantized result of a canvas that is edited a rectangle at a time, such as one brush stroke after another
+Copyright (c) 2026 Miller Cy Chan
+* The histogram of the canvas is kept up to date by taking out the old pixels of a changed rectangle and adding the new ones.
+* While the palette still represents the new pixels, only the rectangle is dithered again, together with a margin around it
+* that gives the error diffusion its context, and the rest of the result is left as it is. Otherwise the palette is made
+* again from the histogram, without going over the canvas, and the whole canvas is mapped onto it. */
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.Rect;
+
+public class CanvasSession {
+	/* Context around a rectangle for the error diffusion */
+	private static final int MARGIN = 16;
+	/* Size of the blue noise mask, a dithered rectangle starts on a multiple of it to continue the pattern */
+	private static final int NOISE_SIZE = 64;
+	/* Below this RGB distance per pixel a palette is never made again */
+	private static final double MIN_ERROR = 4;
+
+	private final int nMaxColors;
+	private final boolean dither;
+	private final PnnQuantizer quantizer;
+	private final int width, height;
+	private double tolerance = 2;
+
+	private Histogram histogram;
+	private Palette palette;
+	private double paletteError;
+	private Bitmap result;
+	private boolean paletteRebuilt;
+
+	public CanvasSession(Bitmap canvas, int nMaxColors, boolean dither, boolean useLab) throws Exception {
+		this.nMaxColors = nMaxColors;
+		this.dither = dither;
+		quantizer = useLab ? new PnnLABQuantizer(canvas) : new PnnQuantizer(canvas);
+		width = canvas.getWidth();
+		height = canvas.getHeight();
+		quantize(quantizer.convert(nMaxColors, dither));
+	}
+
+	/* How many times worse than the whole canvas the pixels of a rectangle may be represented before the palette is made again */
+	public void setTolerance(double tolerance) {
+		this.tolerance = tolerance;
+	}
+
+	private void quantize(Bitmap converted) {
+		histogram = new Histogram(quantizer.hasSemiTransparency, quantizer.hasAlpha());
+		histogram.add(quantizer.pixels);
+		palette = quantizer.getPalette();
+		paletteError = Math.max(MIN_ERROR, meanError());
+		result = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		int[] qPixels = new int[width * height];
+		converted.getPixels(qPixels, 0, width, 0, 0, width, height);
+		result.setPixels(qPixels, 0, width, 0, 0, width, height);
+	}
+
+	private double sqrDistance(final int c)
+	{
+		double best = Double.MAX_VALUE;
+		for (int c2 : palette.colors) {
+			final double dist = BitmapUtilities.sqr(Color.alpha(c2) - Color.alpha(c)) + BitmapUtilities.sqr(Color.red(c2) - Color.red(c))
+				+ BitmapUtilities.sqr(Color.green(c2) - Color.green(c)) + BitmapUtilities.sqr(Color.blue(c2) - Color.blue(c));
+			if (dist < best)
+				best = dist;
+		}
+		return best;
+	}
+
+	/* Root mean square distance of the canvas to the palette, taken from the histogram bins */
+	private double meanError()
+	{
+		double sum = 0, count = 0;
+		for (double[] bin : histogram.bins()) {
+			sum += bin[4] * sqrDistance(Color.argb((int) Math.round(bin[0]), (int) Math.round(bin[1]), (int) Math.round(bin[2]), (int) Math.round(bin[3])));
+			count += bin[4];
+		}
+		return count > 0 ? Math.sqrt(sum / count) : 0;
+	}
+
+	private double meanError(final int[] pixels)
+	{
+		double sum = 0, last = 0;
+		int lastPixel = 0;
+		for (int i = 0; i < pixels.length; ++i) {
+			if (i == 0 || pixels[i] != lastPixel) {
+				lastPixel = pixels[i];
+				last = sqrDistance(lastPixel);
+			}
+			sum += last;
+		}
+		return Math.sqrt(sum / pixels.length);
+	}
+
+	/* New pixels the transparency analysis of the canvas did not see change the layout of the histogram keys */
+	private boolean changesTransparency(final int[] pixels)
+	{
+		for (int pixel : pixels) {
+			final int alpha = Color.alpha(pixel);
+			if (alpha == 0 ? !quantizer.hasAlpha() : alpha > quantizer.alphaThreshold && alpha < 0xE0 && !quantizer.hasSemiTransparency)
+				return true;
+		}
+		return false;
+	}
+
+	/* Takes the canvas after the pixels inside dirty changed and returns the updated result.
+	 * The cost depends on the size of dirty unless the palette has to be made again, see isPaletteRebuilt. */
+	public Bitmap update(Bitmap canvas, Rect dirty) throws Exception {
+		final int left = Math.max(0, dirty.left), top = Math.max(0, dirty.top);
+		final int w = Math.min(width, dirty.right) - left, h = Math.min(height, dirty.bottom) - top;
+		paletteRebuilt = false;
+		if (w <= 0 || h <= 0)
+			return result;
+
+		int[] pixels = new int[w * h];
+		canvas.getPixels(pixels, 0, w, left, top, w, h);
+		if (changesTransparency(pixels)) {
+			quantizer.setBitmap(canvas);
+			paletteRebuilt = true;
+			quantize(quantizer.convert(nMaxColors, dither));
+			return result;
+		}
+
+		int[] oldPixels = new int[w * h];
+		for (int y = 0; y < h; ++y)
+			System.arraycopy(quantizer.pixels, left + (top + y) * width, oldPixels, y * w, w);
+		histogram.remove(oldPixels);
+		histogram.add(pixels);
+		quantizer.setPixels(pixels, left, top, w, h);
+
+		if (meanError(pixels) > tolerance * paletteError) {
+			paletteRebuilt = true;
+			palette = quantizer.quantize(histogram, nMaxColors);
+			paletteError = Math.max(MIN_ERROR, meanError());
+			int[] qPixels = new int[width * height];
+			quantizer.convert(palette, dither).getPixels(qPixels, 0, width, 0, 0, width, height);
+			result.setPixels(qPixels, 0, width, 0, 0, width, height);
+			return result;
+		}
+
+		final int rectLeft = Math.max(0, left - MARGIN) / NOISE_SIZE * NOISE_SIZE;
+		final int rectTop = Math.max(0, top - MARGIN) / NOISE_SIZE * NOISE_SIZE;
+		final int rectWidth = Math.min(width, left + w + MARGIN) - rectLeft;
+		final int rectHeight = Math.min(height, top + h + MARGIN) - rectTop;
+		int[] qPixels = quantizer.ditherRect(rectLeft, rectTop, rectWidth, rectHeight, dither);
+		result.setPixels(qPixels, (left - rectLeft) + (top - rectTop) * rectWidth, rectWidth, left, top, w, h);
+		return result;
+	}
+
+	/* Whether the last update made the palette again and mapped the whole canvas onto it */
+	public boolean isPaletteRebuilt() {
+		return paletteRebuilt;
+	}
+
+	public Bitmap getResult() {
+		return result;
+	}
+
+	public Palette getPalette() {
+		return palette;
+	}
+}
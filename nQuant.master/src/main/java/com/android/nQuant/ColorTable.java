@@ -0,0 +1,121 @@
+package com.android.nQuant;
+/* Open addressing map from ARGB color to its index in order of first appearance
+Copyright (c) 2026 Miller Cy Chan
+* The table doubles once it is half full, the initial capacity only saves the rehashing.
+* Lookups do not modify the table, so a filled table can be read from several threads. */
+
+import java.util.Arrays;
+
+final class ColorTable {
+	private int[] keys;
+	private int[] indices; /* index + 1, 0 marks an empty slot */
+	private int[] counts;
+	private int mask, shift;
+	private int size = 0;
+
+	ColorTable(final int capacity)
+	{
+		allocate(Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1) << 1);
+		counts = new int[Math.max(capacity, 2)];
+	}
+
+	private void allocate(final int slots)
+	{
+		keys = new int[slots];
+		indices = new int[slots];
+		mask = slots - 1;
+		shift = 32 - Integer.numberOfTrailingZeros(slots);
+	}
+
+	private int slot(final int color)
+	{
+		int i = (color * 0x9E3779B9) >>> shift;
+		while (indices[i] != 0 && keys[i] != color)
+			i = (i + 1) & mask;
+		return i;
+	}
+
+	private void grow()
+	{
+		final int[] oldKeys = keys, oldIndices = indices;
+		allocate(keys.length << 1);
+		for (int i = 0; i < oldKeys.length; ++i) {
+			if (oldIndices[i] != 0) {
+				final int j = slot(oldKeys[i]);
+				keys[j] = oldKeys[i];
+				indices[j] = oldIndices[i];
+			}
+		}
+	}
+
+	int get(final int color)
+	{
+		return indices[slot(color)] - 1;
+	}
+
+	/* Returns the index of color, adding it if it is new, and counts the occurrence */
+	int add(final int color)
+	{
+		int i = slot(color);
+		if (indices[i] == 0) {
+			if (size >= keys.length >> 1) {
+				grow();
+				i = slot(color);
+			}
+			if (size == counts.length)
+				counts = Arrays.copyOf(counts, size << 1);
+			keys[i] = color;
+			indices[i] = ++size;
+		}
+		final int k = indices[i] - 1;
+		++counts[k];
+		return k;
+	}
+
+	int size()
+	{
+		return size;
+	}
+
+	int[] colors()
+	{
+		final int[] colors = new int[size];
+		for (int i = 0; i < keys.length; ++i) {
+			if (indices[i] != 0)
+				colors[indices[i] - 1] = keys[i];
+		}
+		return colors;
+	}
+
+	/* Indices in ascending order of their colors */
+	int[] sortedIndices()
+	{
+		final long[] entries = new long[size];
+		int n = 0;
+		for (int i = 0; i < keys.length; ++i) {
+			if (indices[i] != 0)
+				entries[n++] = (long) keys[i] << 32 | (indices[i] - 1);
+		}
+		Arrays.sort(entries);
+
+		final int[] order = new int[size];
+		for (int k = 0; k < size; ++k)
+			order[k] = (int) entries[k];
+		return order;
+	}
+
+	/* Occurrences of every color added, by index */
+	int count(final int k)
+	{
+		return counts[k];
+	}
+
+	/* Distinct colors of pixels with their counts */
+	static ColorTable compact(final int[] pixels)
+	{
+		final ColorTable table = new ColorTable(1 << 12);
+		for (int pixel : pixels)
+			table.add(pixel);
+		return table;
+	}
+}
@@ -0,0 +1,20 @@
+package com.android.nQuant;
+/* Cheaper strategies a conversion with a time or memory budget may fall back on, see PnnQuantizer.convert(int, boolean, long) and setMemoryBudget
+Copyright (c) 2026 Miller Cy Chan */
+
+public enum Degradation {
+	/* The histogram was built from every n-th pixel */
+	SUBSAMPLED_HISTOGRAM,
+	/* The bins were cut down by a median cut before the pairwise merge, see PnnQuantizer.setPreReduction */
+	COARSE_MERGE,
+	/* Integer distances were used in the merge and the lookups of the RGB metric, bin means stayed doubles, see PnnQuantizer.setFixedPoint */
+	FIXED_POINT_METRIC,
+	/* A ditherer of lower cost than the chosen one was used, see Ditherer.select */
+	CHEAPER_DITHER,
+	/* The color lookups were emptied whenever they got full, so colors were looked up again */
+	BOUNDED_CACHES,
+	/* The saliency map kept 8 bits per pixel instead of 16 */
+	COMPACT_SALIENCY,
+	/* The image was dithered in bands of rows, each starting the error diffusion afresh */
+	TILED_DITHER
+}
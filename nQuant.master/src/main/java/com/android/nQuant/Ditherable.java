@@ -4,4 +4,19 @@ public interface Ditherable {
 	public int getColorIndex(final int c);
 	
 	public short nearestColorIndex(final Integer[] palette, final int c, final int pos);
+
+	/* Strength of the blue noise refinement, asked for right before it is applied */
+	public default float getBlueNoiseWeight(final Integer[] palette) {
+		return 1.0f;
+	}
+
+	/* Shifts the blue noise mask, see BlueNoise.offsetX */
+	public default int getBlueNoisePhase() {
+		return 0;
+	}
+
+	/* Called every so often with the share of the pass done, from 0 to 1.
+	 * Throwing, such as OperationCanceledException from CancellationSignal.throwIfCanceled, abandons the dithering. */
+	public default void checkProgress(final float progress) {
+	}
 }
@@ -0,0 +1,107 @@
+package com.android.nQuant;
+/* Strategy for spreading the quantization error over the image
+Copyright (c) 2026 Miller Cy Chan
+* The cost is relative to GILBERT, so a caller can trade quality for a latency budget per conversion. */
+
+public interface Ditherer {
+	/* Returns the quantized image as palette colors */
+	public int[] dither(final int width, final int height, final int[] pixels, final Integer[] palette, final Ditherable ditherable, final SaliencyMap saliencies, final double weight, final boolean dither) throws Exception;
+
+	public default float getCost() {
+		return 1.0f;
+	}
+
+	public default boolean isParallelSafe() {
+		return false;
+	}
+
+	public default boolean usesSaliency() {
+		return false;
+	}
+
+	public static final Ditherer GILBERT = new Ditherer() {
+		@Override
+		public int[] dither(int width, int height, int[] pixels, Integer[] palette, Ditherable ditherable, SaliencyMap saliencies, double weight, boolean dither) throws Exception {
+			int[] qPixels = GilbertCurve.dither(width, height, pixels, palette, ditherable, saliencies, weight, dither);
+			if (!dither && palette.length > 32)
+				BlueNoise.dither(width, height, pixels, palette, ditherable, qPixels, ditherable.getBlueNoiseWeight(palette));
+			return qPixels;
+		}
+
+		@Override
+		public boolean usesSaliency() {
+			return true;
+		}
+	};
+
+	public static final Ditherer SERPENTINE = new Ditherer() {
+		@Override
+		public int[] dither(int width, int height, int[] pixels, Integer[] palette, Ditherable ditherable, SaliencyMap saliencies, double weight, boolean dither) {
+			return BitmapUtilities.quantize_image(width, height, pixels, palette, ditherable, weight < 0, dither);
+		}
+
+		@Override
+		public float getCost() {
+			return .35f;
+		}
+	};
+
+	public static final Ditherer BLUE_NOISE = new Ditherer() {
+		@Override
+		public int[] dither(int width, int height, int[] pixels, Integer[] palette, Ditherable ditherable, SaliencyMap saliencies, double weight, boolean dither) {
+			int[] qPixels = new int[pixels.length];
+			for (int i = 0; i < pixels.length; ++i)
+				qPixels[i] = ditherable.nearestColorIndex(palette, pixels[i], i);
+			return BlueNoise.dither(width, height, pixels, palette, ditherable, qPixels, ditherable.getBlueNoiseWeight(palette));
+		}
+
+		@Override
+		public float getCost() {
+			return .25f;
+		}
+	};
+
+	public static final Ditherer ORDERED = new Ditherer() {
+		@Override
+		public int[] dither(int width, int height, int[] pixels, Integer[] palette, Ditherable ditherable, SaliencyMap saliencies, double weight, boolean dither) {
+			return OrderedDither.dither(width, height, pixels, palette, ditherable, null, ditherable.getBlueNoiseWeight(palette), true);
+		}
+
+		@Override
+		public float getCost() {
+			return .05f;
+		}
+
+		@Override
+		public boolean isParallelSafe() {
+			return true;
+		}
+	};
+
+	public static final Ditherer ORDERED_BLUE_NOISE = new Ditherer() {
+		@Override
+		public int[] dither(int width, int height, int[] pixels, Integer[] palette, Ditherable ditherable, SaliencyMap saliencies, double weight, boolean dither) {
+			return OrderedDither.dither(width, height, pixels, palette, ditherable, null, ditherable.getBlueNoiseWeight(palette), false);
+		}
+
+		@Override
+		public float getCost() {
+			return .05f;
+		}
+
+		@Override
+		public boolean isParallelSafe() {
+			return true;
+		}
+	};
+
+	/* Picks the most expensive built-in ditherer that still fits into maxCost */
+	public static Ditherer select(final float maxCost) {
+		Ditherer[] builtIns = { GILBERT, SERPENTINE, BLUE_NOISE, ORDERED_BLUE_NOISE };
+		for (Ditherer ditherer : builtIns) {
+			if (ditherer.getCost() <= maxCost)
+				return ditherer;
+		}
+		return ORDERED;
+	}
+}
@@ -0,0 +1,63 @@
+package com.android.nQuant;
+/* Quantizes the frames of an animation with as few palettes as possible
+Copyright (c) 2026 Miller Cy Chan
+* A palette is made for a key frame, later frames are only mapped onto it, with the color lookups kept warm,
+* until the coarse color histogram of a frame has drifted too far from the key frame.
+* Every frame gets the next blue noise phase, so the dither pattern does not stand still nor flicker at random. */
+
+import android.graphics.Bitmap;
+
+public class FrameSequenceQuantizer {
+	private final int nMaxColors;
+	private final boolean dither, useLab;
+	private double driftThreshold = .2;
+
+	private PnnQuantizer quantizer;
+	private Palette palette;
+	private float[] keySignature;
+	private int frames = 0, keyFrames = 0;
+	private double lastDrift;
+
+	public FrameSequenceQuantizer(int nMaxColors, boolean dither, boolean useLab) {
+		this.nMaxColors = nMaxColors;
+		this.dither = dither;
+		this.useLab = useLab;
+	}
+
+	/* Share of the pixels, from 0 to 1, that must have moved to other colors before a new palette is made */
+	public void setDriftThreshold(double driftThreshold) {
+		this.driftThreshold = driftThreshold;
+	}
+
+	public Bitmap next(Bitmap frame) throws Exception {
+		if (quantizer == null)
+			quantizer = useLab ? new PnnLABQuantizer(frame) : new PnnQuantizer(frame);
+		else
+			quantizer.setBitmap(frame);
+		quantizer.setBlueNoisePhase(frames++);
+
+		float[] signature = BitmapUtilities.colorSignature(quantizer.pixels);
+		lastDrift = keySignature == null ? 1 : BitmapUtilities.signatureDrift(keySignature, signature);
+		if (palette == null || lastDrift > driftThreshold) {
+			Bitmap result = quantizer.convert(nMaxColors, dither);
+			palette = quantizer.getPalette();
+			keySignature = signature;
+			++keyFrames;
+			return result;
+		}
+		return quantizer.convert(palette, dither);
+	}
+
+	/* Drift of the last frame from its key frame */
+	public double getLastDrift() {
+		return lastDrift;
+	}
+
+	public int getKeyFrameCount() {
+		return keyFrames;
+	}
+
+	public Palette getPalette() {
+		return palette;
+	}
+}
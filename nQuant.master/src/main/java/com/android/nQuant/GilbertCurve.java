@@ -8,6 +8,7 @@ import java.util.ArrayDeque;
 import java.util.Comparator;
 import java.util.PriorityQueue;
 import java.util.Queue;
+import java.util.stream.IntStream;
 
 import static com.android.nQuant.BitmapUtilities.BYTE_MAX;
 
@@ -37,26 +38,59 @@ public class GilbertCurve {
 	private final boolean dither, hasAlpha, sortedByYDiff;
 	private final int width, height;
 	private final double weight;
+	private final int[] image;
 	private final int[] pixels;
 	private final Integer[] palette;
-	private final int[] qPixels;
+	private int[] qPixels;
 	private final Ditherable ditherable;
-	private final float[] saliencies;
+	private final SaliencyMap imageSaliencies;
+	private final SaliencyMap saliencies;
 	private final Queue<ErrorBox> errorq;
+	/* Luminance of the source pixels in storage order, only built when the pass compares against it.
+	 * Floats hold it to well within the thresholds it is compared with, at half the memory of doubles. */
+	private float[] yPlane;
+
+	/* Curve order layout: pixels and saliencies are gathered into buffers in the order the curve visits them,
+	 * the buffer of pixels is overwritten by the result and scattered back to raster order at the end. */
+	private final boolean curveOrder;
+	private byte pass;
+	private int cursor;
+	private static final byte GATHER = 0, DIFFUSE = 1, SCATTER = 2;
+	public static final int CURVE_ORDER_THRESHOLD = 1 << 22;
+
+	/* Flat regions: inside a run of a color within FLAT_ERROR of a palette entry, the errors pushed are zeroed,
+	 * so the queue decays to zero and the rest of the run is emitted without diffusion. flatPixel only holds the color
+	 * of the run once hasFlatPixel, and the entry is resolved for each parity of the position, which closestColorIndex goes by. */
+	private int zeroErrors, flatPixel;
+	private boolean hasFlatPixel;
+	private final short[] flatIndices = { UNRESOLVED, UNRESOLVED };
+	private static final short UNRESOLVED = -2;
+	private static final int FLAT_ERROR = 2;
 
 	private final int margin, thresold;
+	/* Blue noise mask offset of this conversion */
+	private final int noiseX, noiseY;
 	private static final float BLOCK_SIZE = 343f;
 
-	private GilbertCurve(final int width, final int height, final int[] image, final Integer[] palette, final int[] qPixels, final Ditherable ditherable, final float[] saliencies, double weight, boolean dither)
+	/* Pixels visited over all passes, progress is checked every PROGRESS_MASK + 1 of them */
+	private static final int PROGRESS_MASK = (1 << 14) - 1;
+	private int steps = 0;
+
+	private GilbertCurve(final int width, final int height, final int[] image, final Integer[] palette, final int[] qPixels, final Ditherable ditherable, final SaliencyMap saliencies, double weight, boolean dither, boolean curveOrder)
 	{
+		this.curveOrder = curveOrder;
 		this.width = width;
 		this.height = height;
-		this.pixels = image;
+		this.image = image;
+		this.pixels = curveOrder ? new int[image.length] : image;
 		this.palette = palette;
 		this.qPixels = qPixels;
 		this.ditherable = ditherable;
+		noiseX = BlueNoise.offsetX(ditherable.getBlueNoisePhase());
+		noiseY = BlueNoise.offsetY(ditherable.getBlueNoisePhase());
 		this.hasAlpha = weight < 0;
-		this.saliencies = saliencies;
+		this.imageSaliencies = saliencies;
+		this.saliencies = curveOrder && saliencies != null ? saliencies.newBuffer() : saliencies;
 		this.dither = dither;
 		this.weight = Math.abs(weight);
 		margin = weight < .0025 ? 12 : weight < .004 ? 8 : 6;
@@ -122,9 +156,9 @@ public class GilbertCurve {
 		return (float) Math.max(0.0, Math.min(peak, scaledPdf));
 	}
 
-	private int ditherPixel(int x, int y, int c2, float beta) {
+	private int ditherPixel(int x, int y, int sidx, int pixel, int c2, float beta) {
 		final int bidx = x + y * width;
-		final int pixel = pixels[bidx];
+		final float saliency = saliencies.get(sidx);
 		int r_pix = Color.red(c2);
 		int g_pix = Color.green(c2);
 		int b_pix = Color.blue(c2);
@@ -132,61 +166,89 @@ public class GilbertCurve {
 		
 		final float strength = 1 / 3f;
 		final int acceptedDiff = Math.max(2, palette.length - margin);
-		if (palette.length <= 4 && saliencies[bidx] > .2f && saliencies[bidx] < .25f)
-			c2 = BlueNoise.diffuse(pixel, palette[qPixels[bidx]], beta * 2 / saliencies[bidx], strength, x, y);
-		else if (palette.length <= 4 || CIELABConvertor.Y_Diff(pixel, c2) < (2 * acceptedDiff)) {
+		if (palette.length <= 4 && saliency > .2f && saliency < .25f)
+			c2 = BlueNoise.diffuse(pixel, palette[qPixels[sidx]], beta * 2 / saliency, strength, x + noiseX, y + noiseY);
+		else if (palette.length <= 4 || CIELABConvertor.Y_Diff(yPlane[sidx], c2) < (2 * acceptedDiff)) {
 			if (palette.length > 64) {
-				float kappa = saliencies[bidx] < .6f ? beta * .15f / saliencies[bidx] : beta * .4f / saliencies[bidx];
-				c2 = BlueNoise.diffuse(pixel, palette[qPixels[bidx]], kappa, strength, x, y);
+				float kappa = saliency < .6f ? beta * .15f / saliency : beta * .4f / saliency;
+				c2 = BlueNoise.diffuse(pixel, palette[qPixels[sidx]], kappa, strength, x + noiseX, y + noiseY);
 			}
 			else if (palette.length > 16 && weight < .005)
-				c2 = BlueNoise.diffuse(pixel, palette[qPixels[bidx]], beta * normalDistribution(saliencies[bidx], .5f) + beta, strength, x, y);
+				c2 = BlueNoise.diffuse(pixel, palette[qPixels[sidx]], beta * normalDistribution(saliency, .5f) + beta, strength, x + noiseX, y + noiseY);
 			else
-				c2 = BlueNoise.diffuse(pixel, palette[qPixels[bidx]], beta * .5f / saliencies[bidx], strength, x, y);
+				c2 = BlueNoise.diffuse(pixel, palette[qPixels[sidx]], beta * .5f / saliency, strength, x + noiseX, y + noiseY);
 		}
 
 		double gamma = (palette.length <= 32 && weight < .01 && weight > .007) ? 1 - beta : beta;
-		if (palette.length > 4 && CIELABConvertor.Y_Diff(pixel, c2) > (gamma * acceptedDiff)) {
+		if (palette.length > 4 && CIELABConvertor.Y_Diff(yPlane[sidx], c2) > (gamma * acceptedDiff)) {
 			if (margin > 6 || gamma > beta) {
-				float kappa = saliencies[bidx] < .4f ? beta * .4f * saliencies[bidx] : beta * .4f / saliencies[bidx];
+				float kappa = saliency < .4f ? beta * .4f * saliency : beta * .4f / saliency;
 				int c1 = Color.argb(a_pix, r_pix, g_pix, b_pix);
-				if (palette.length > 32 && saliencies[bidx] < .9)
-					kappa = beta * normalDistribution(saliencies[bidx], 2f);
+				if (palette.length > 32 && saliency < .9)
+					kappa = beta * normalDistribution(saliency, 2f);
 				else {
-					if (weight >= .0015 && saliencies[bidx] < .6)
+					if (weight >= .0015 && saliency < .6)
 						c1 = pixel;
-					if (weight >= .005 && saliencies[bidx] < .6)
-						kappa = beta * normalDistribution(saliencies[bidx], weight < .0008 ? 2.5f : 1.75f);
+					if (weight >= .005 && saliency < .6)
+						kappa = beta * normalDistribution(saliency, weight < .0008 ? 2.5f : 1.75f);
 					else if (palette.length >= 32 || CIELABConvertor.Y_Diff(c1, c2) > (gamma * Math.PI * acceptedDiff)) {
 						double ub = 1 - palette.length / 320.0;
-						if (saliencies[bidx] > .15 && saliencies[bidx] < ub)
-							kappa = beta * (!sortedByYDiff && weight < .0025 ? .55f : .5f) / saliencies[bidx];
+						if (saliency > .15 && saliency < ub)
+							kappa = beta * (!sortedByYDiff && weight < .0025 ? .55f : .5f) / saliency;
 						else
-							kappa = beta * normalDistribution(saliencies[bidx], weight < .0025 ? 1.82f : 2f);
+							kappa = beta * normalDistribution(saliency, weight < .0025 ? 1.82f : 2f);
 					}
 				}
 
-				c2 = BlueNoise.diffuse(c1, palette[qPixels[bidx]], kappa, strength, x, y);
+				c2 = BlueNoise.diffuse(c1, palette[qPixels[sidx]], kappa, strength, x + noiseX, y + noiseY);
 			}
 			else if (palette.length <= 32 && weight >= .004)
-				c2 = BlueNoise.diffuse(c2, palette[qPixels[bidx]], beta * normalDistribution(saliencies[bidx], .25f), strength, x, y);
+				c2 = BlueNoise.diffuse(c2, palette[qPixels[sidx]], beta * normalDistribution(saliency, .25f), strength, x + noiseX, y + noiseY);
 			else
 				c2 = Color.argb(a_pix, r_pix, g_pix, b_pix);
 		}
 		
-		if (DITHER_MAX < 16 && palette.length > 4 && saliencies[bidx] < .6f && CIELABConvertor.Y_Diff(pixel, c2) > margin - 1)
+		if (DITHER_MAX < 16 && palette.length > 4 && saliency < .6f && CIELABConvertor.Y_Diff(yPlane[sidx], c2) > margin - 1)
 			c2 = Color.argb(a_pix, r_pix, g_pix, b_pix);
-		if (palette.length > 32 && saliencies[bidx] > .95) {
-			float kappa = beta * Math.max(.05f, .75f - palette.length / 128f) * saliencies[bidx];
-			c2 = BlueNoise.diffuse(pixel, palette[qPixels[bidx]], kappa, strength, x, y);
+		if (palette.length > 32 && saliency > .95) {
+			float kappa = beta * Math.max(.05f, .75f - palette.length / 128f) * saliency;
+			c2 = BlueNoise.diffuse(pixel, palette[qPixels[sidx]], kappa, strength, x + noiseX, y + noiseY);
 		}
 
 		return ditherable.nearestColorIndex(palette, c2, bidx);
 	}
 
-	private void diffusePixel(int x, int y) {
+	/* The palette entry of a flat run at this position, or -1 outside of one. A run starts at its second pixel. */
+	private short getFlatIndex(int bidx, final int pixel) {
+		if (!hasFlatPixel || pixel != flatPixel) {
+			flatPixel = pixel;
+			hasFlatPixel = true;
+			flatIndices[0] = flatIndices[1] = UNRESOLVED;
+			return -1;
+		}
+
+		final int parity = bidx & 1;
+		if (flatIndices[parity] == UNRESOLVED) {
+			short k = ditherable.nearestColorIndex(palette, pixel, bidx);
+			int c2 = palette[k];
+			boolean close = Math.abs(Color.red(pixel) - Color.red(c2)) <= FLAT_ERROR && Math.abs(Color.green(pixel) - Color.green(c2)) <= FLAT_ERROR
+				&& Math.abs(Color.blue(pixel) - Color.blue(c2)) <= FLAT_ERROR && Math.abs(Color.alpha(pixel) - Color.alpha(c2)) <= FLAT_ERROR;
+			flatIndices[parity] = close ? k : -1;
+		}
+		return flatIndices[parity];
+	}
+
+	private void diffusePixel(int x, int y, int sidx, final int pixel) {
 		final int bidx = x + y * width;
-		final int pixel = pixels[bidx];
+		final short flatIndex = sortedByYDiff ? -1 : getFlatIndex(bidx, pixel);
+		final boolean flat = flatIndex >= 0;
+		if (flat && errorq.size() >= DITHER_MAX && zeroErrors >= errorq.size()) {
+			/* The queue is full and every carried error is zero, a zero error in place of the oldest leaves it as it is.
+			 * While it fills up, each error changes the weights of the next ones, so it still takes the full path. */
+			qPixels[sidx] = (dither || palette.length <= 32) ? palette[flatIndex] : flatIndex;
+			return;
+		}
+
 		ErrorBox error = new ErrorBox(pixel);
 
 		float maxErr = DITHER_MAX - 1;
@@ -210,30 +272,30 @@ public class GilbertCurve {
 
 		int c2 = Color.argb(a_pix, r_pix, g_pix, b_pix);
 		if (saliencies != null && dither && !sortedByYDiff && (!hasAlpha || Color.alpha(pixel) < a_pix)) {
-			if ((palette.length >= 256 && saliencies[bidx] > .99f) || (hasAlpha && (Color.alpha(pixel) - a_pix) < (.5 * margin)))
-				qPixels[bidx] = ditherable.nearestColorIndex(palette, c2, bidx);
+			if ((palette.length >= 256 && saliencies.get(sidx) > .99f) || (hasAlpha && (Color.alpha(pixel) - a_pix) < (.5 * margin)))
+				qPixels[sidx] = ditherable.nearestColorIndex(palette, c2, bidx);
 			else
-				qPixels[bidx] = ditherPixel(x, y, c2, beta);
+				qPixels[sidx] = ditherPixel(x, y, sidx, pixel, c2, beta);
 		}
 		else if (palette.length <= 32 && a_pix > 0xF0) {
-			qPixels[bidx] = ditherable.nearestColorIndex(palette, c2, bidx);
+			qPixels[sidx] = ditherable.nearestColorIndex(palette, c2, bidx);
 
 			final int acceptedDiff = Math.max(2, palette.length - margin);
-			if(saliencies != null && (CIELABConvertor.Y_Diff(pixel, c2) > acceptedDiff || CIELABConvertor.U_Diff(pixel, c2) > (2 * acceptedDiff))) {
+			if(saliencies != null && (CIELABConvertor.Y_Diff(yPlane[sidx], c2) > acceptedDiff || CIELABConvertor.U_Diff(pixel, c2) > (2 * acceptedDiff))) {
 				final float strength = 1 / 3f;
-				c2 = BlueNoise.diffuse(pixel, palette[qPixels[bidx]], 1 / saliencies[bidx], strength, x, y);
-				qPixels[bidx] = ditherable.nearestColorIndex(palette, c2, bidx);
+				c2 = BlueNoise.diffuse(pixel, palette[qPixels[sidx]], 1 / saliencies.get(sidx), strength, x + noiseX, y + noiseY);
+				qPixels[sidx] = ditherable.nearestColorIndex(palette, c2, bidx);
 			}
 		}
 		else
-			qPixels[bidx] = ditherable.nearestColorIndex(palette, c2, bidx);
+			qPixels[sidx] = ditherable.nearestColorIndex(palette, c2, bidx);
 
 		if(errorq.size() >= DITHER_MAX)
 			errorq.poll();
 		else if(!errorq.isEmpty())
 			initWeights(errorq.size());
 
-		c2 = palette[qPixels[bidx]];
+		c2 = palette[qPixels[sidx]];
 		error.p[0] = r_pix - Color.red(c2);
 		error.p[1] = g_pix - Color.green(c2);
 		error.p[2] = b_pix - Color.blue(c2);
@@ -241,7 +303,7 @@ public class GilbertCurve {
 
 		boolean denoise = palette.length > 2;
 		boolean diffuse = BlueNoise.TELL_BLUE_NOISE[bidx & 4095] > thresold;
-		error.yDiff = sortedByYDiff ? CIELABConvertor.Y_Diff(pixel, c2) : 1;
+		error.yDiff = sortedByYDiff ? CIELABConvertor.Y_Diff(yPlane[sidx], c2) : 1;
 		boolean illusion = !diffuse && BlueNoise.TELL_BLUE_NOISE[(int) (error.yDiff * 4096) & 4095] > thresold;
 
 		boolean unaccepted = false;
@@ -265,18 +327,59 @@ public class GilbertCurve {
 
 		if (unaccepted) {
 			if (saliencies != null)
-				qPixels[bidx] = ditherPixel(x, y, c2, beta);
-			else if (CIELABConvertor.Y_Diff(pixel, c2) > 3 && CIELABConvertor.U_Diff(pixel, c2) > 3) {
+				qPixels[sidx] = ditherPixel(x, y, sidx, pixel, c2, beta);
+			else if (CIELABConvertor.Y_Diff(yPlane[sidx], c2) > 3 && CIELABConvertor.U_Diff(pixel, c2) > 3) {
 				final float strength = 1 / 3f;
-				c2 = BlueNoise.diffuse(pixel, palette[qPixels[bidx]], strength, strength, x, y);
-				qPixels[bidx] = ditherable.nearestColorIndex(palette, c2, bidx);
+				c2 = BlueNoise.diffuse(pixel, palette[qPixels[sidx]], strength, strength, x + noiseX, y + noiseY);
+				qPixels[sidx] = ditherable.nearestColorIndex(palette, c2, bidx);
 			}
 		}
 
+		if (flat && qPixels[sidx] == flatIndex) {
+			error = new ErrorBox();
+			++zeroErrors;
+		}
+		else
+			zeroErrors = 0;
 		errorq.add(error);
 
 		if (dither || palette.length <= 32)
-			qPixels[bidx] = palette[qPixels[bidx]];
+			qPixels[sidx] = palette[qPixels[sidx]];
+	}
+
+	private void visit(int x, int y) {
+		if ((++steps & PROGRESS_MASK) == 0)
+			ditherable.checkProgress((float) steps / (curveOrder ? 3 * pixels.length : pixels.length));
+
+		final int bidx = x + y * width;
+		if (!curveOrder) {
+			diffusePixel(x, y, bidx, pixels[bidx]);
+			return;
+		}
+
+		final int sidx = cursor++;
+		if (pass == GATHER) {
+			pixels[sidx] = image[bidx];
+			if (saliencies != null)
+				saliencies.copy(imageSaliencies, bidx, sidx);
+		}
+		else if (pass == DIFFUSE) {
+			/* The result is written over the gathered pixel, which starts out as index 0 like a fresh qPixels */
+			final int pixel = pixels[sidx];
+			pixels[sidx] = 0;
+			diffusePixel(x, y, sidx, pixel);
+		}
+		else
+			qPixels[bidx] = pixels[sidx];
+	}
+
+	private void traverse() throws Exception
+	{
+		cursor = 0;
+		if (width >= height)
+			generate2d(0, 0, width, 0, 0, height);
+		else
+			generate2d(0, 0, 0, height, width, 0);
 	}
 
 	private void generate2d(int x, int y, int ax, int ay, int bx, int by) throws Exception {
@@ -289,7 +392,7 @@ public class GilbertCurve {
 
 		if (h == 1) {
 			for (int i = 0; i < w; ++i){
-				diffusePixel(x, y);
+				visit(x, y);
 				x += dax;
 				y += day;
 			}
@@ -298,7 +401,7 @@ public class GilbertCurve {
 
 		if (w == 1) {
 			for (int i = 0; i < h; ++i){
-				diffusePixel(x, y);
+				visit(x, y);
 				x += dbx;
 				y += dby;
 			}
@@ -353,22 +456,49 @@ public class GilbertCurve {
 		weights[0] += 1f - weight;
 	}
 
+	private void buildLuminance()
+	{
+		if (saliencies == null && !sortedByYDiff)
+			return;
+
+		yPlane = new float[pixels.length];
+		IntStream.range(0, pixels.length).parallel().forEach(i -> yPlane[i] = (float) CIELABConvertor.luminance(pixels[i]));
+	}
+
 	private void run() throws Exception
 	{
+		final int[] output = qPixels;
+		if (curveOrder) {
+			pass = GATHER;
+			traverse();
+		}
+		buildLuminance();
+
 		if(!sortedByYDiff)
 			initWeights(DITHER_MAX);
 
-		if (width >= height)
-			generate2d(0, 0, width, 0, 0, height);
-		else
-			generate2d(0, 0, 0, height, width, 0);
+		pass = DIFFUSE;
+		if (curveOrder)
+			qPixels = pixels;
+		traverse();
+
+		if (curveOrder) {
+			qPixels = output;
+			pass = SCATTER;
+			traverse();
+		}
 	}
 
-	public static int[] dither(final int width, final int height, final int[] pixels, final Integer[] palette, final Ditherable ditherable, final float[] saliencies, final double weight, final boolean dither) throws Exception
+	public static int[] dither(final int width, final int height, final int[] pixels, final Integer[] palette, final Ditherable ditherable, final SaliencyMap saliencies, final double weight, final boolean dither, final boolean curveOrder) throws Exception
 	{
-        int[] qPixels = new int[pixels.length];
-		new GilbertCurve(width, height, pixels, palette, qPixels, ditherable, saliencies, weight, dither).run();
+		int[] qPixels = new int[pixels.length];
+		new GilbertCurve(width, height, pixels, palette, qPixels, ditherable, saliencies, weight, dither, curveOrder).run();
 
 		return qPixels;
 	}
+
+	public static int[] dither(final int width, final int height, final int[] pixels, final Integer[] palette, final Ditherable ditherable, final SaliencyMap saliencies, final double weight, final boolean dither) throws Exception
+	{
+		return dither(width, height, pixels, palette, ditherable, saliencies, weight, dither, pixels.length >= CURVE_ORDER_THRESHOLD);
+	}
 }
@@ -0,0 +1,160 @@
+package com.android.nQuant;
+/* Color histogram that can be built per image, merged and saved, so one palette can be made for a set of images
+Copyright (c) 2026 Miller Cy Chan
+* Bins are keyed like BitmapUtilities.getColorIndex and hold the channel sums and pixel count, merging adds them up.
+* Histograms of different images can be built on different threads or machines and reduced in one place. */
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+public class Histogram {
+	private static final int MAGIC = 0x4E514853; /* NQHS */
+	private static final int ALPHA_THRESHOLD = 0xF;
+	/* Keys of getColorIndex are 16 bits */
+	private static final int KEYS = 1 << 16;
+
+	private final boolean hasSemiTransparency, hasTransparency;
+	private final ColorTable keys = new ColorTable(1 << 12);
+	/* Per bin: alpha, red, green and blue sums, then the pixel count */
+	private long[] sums = new long[5 << 12];
+
+	/* The key layout must be the same for histograms that are merged, see BitmapUtilities.getColorIndex */
+	public Histogram(final boolean hasSemiTransparency, final boolean hasTransparency) {
+		this.hasSemiTransparency = hasSemiTransparency;
+		this.hasTransparency = hasTransparency;
+	}
+
+	public boolean hasSemiTransparency() {
+		return hasSemiTransparency;
+	}
+
+	public boolean hasTransparency() {
+		return hasTransparency;
+	}
+
+	/* Number of nonempty bins */
+	public int size() {
+		int size = 0;
+		for (int i = 0; i < keys.size(); ++i) {
+			if (sums[5 * i + 4] > 0)
+				++size;
+		}
+		return size;
+	}
+
+	private int bin(final int key)
+	{
+		final int k = keys.add(key);
+		if (5 * k >= sums.length)
+			sums = Arrays.copyOf(sums, sums.length << 1);
+		return 5 * k;
+	}
+
+	private void add(final int key, final long a, final long r, final long g, final long b, final long count)
+	{
+		final int k = bin(key);
+		sums[k] += a;
+		sums[k + 1] += r;
+		sums[k + 2] += g;
+		sums[k + 3] += b;
+		sums[k + 4] += count;
+	}
+
+	private void add(final int[] pixels, final int count) {
+		for (int pixel : pixels) {
+			if (Color.alpha(pixel) <= ALPHA_THRESHOLD)
+				pixel = Color.TRANSPARENT;
+			add(BitmapUtilities.getColorIndex(pixel, hasSemiTransparency, hasTransparency),
+				count * Color.alpha(pixel), count * Color.red(pixel), count * Color.green(pixel), count * Color.blue(pixel), count);
+		}
+	}
+
+	public void add(final int[] pixels) {
+		add(pixels, 1);
+	}
+
+	/* Takes back pixels added before, such as the old content of a region that was painted over */
+	public void remove(final int[] pixels) {
+		add(pixels, -1);
+	}
+
+	public void add(final Bitmap bitmap) {
+		final int[] pixels = new int[bitmap.getWidth() * bitmap.getHeight()];
+		bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+		add(pixels);
+	}
+
+	public void merge(final Histogram other) {
+		if (other.hasSemiTransparency != hasSemiTransparency || other.hasTransparency != hasTransparency)
+			throw new IllegalArgumentException("Histograms use different key layouts");
+
+		final int[] otherKeys = other.keys.colors();
+		for (int i = 0; i < otherKeys.length; ++i) {
+			final int k = 5 * i;
+			add(otherKeys[i], other.sums[k], other.sums[k + 1], other.sums[k + 2], other.sums[k + 3], other.sums[k + 4]);
+		}
+	}
+
+	/* Mean colors and counts of the nonempty bins in key order, as {alpha, red, green, blue, count} */
+	double[][] bins()
+	{
+		final int[] order = keys.sortedIndices();
+		final double[][] bins = new double[size()][];
+		int j = 0;
+		for (int i = 0; i < order.length; ++i) {
+			final int k = 5 * order[i];
+			final double count = sums[k + 4];
+			if (count > 0)
+				bins[j++] = new double[] { sums[k] / count, sums[k + 1] / count, sums[k + 2] / count, sums[k + 3] / count, count };
+		}
+		return bins;
+	}
+
+	long pixelCount()
+	{
+		long count = 0;
+		for (int i = 0; i < keys.size(); ++i)
+			count += sums[5 * i + 4];
+		return count;
+	}
+
+	public void write(final OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(MAGIC);
+		data.writeBoolean(hasSemiTransparency);
+		data.writeBoolean(hasTransparency);
+		final int[] binKeys = keys.colors();
+		data.writeInt(binKeys.length);
+		for (int i = 0; i < binKeys.length; ++i) {
+			data.writeInt(binKeys[i]);
+			for (int c = 0; c < 5; ++c)
+				data.writeLong(sums[5 * i + c]);
+		}
+		data.flush();
+	}
+
+	public static Histogram read(final InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		if (data.readInt() != MAGIC)
+			throw new IOException("Not a histogram file");
+
+		Histogram histogram = new Histogram(data.readBoolean(), data.readBoolean());
+		final int size = data.readInt();
+		if (size < 0 || size > KEYS)
+			throw new IOException("Corrupt histogram file");
+		for (int i = 0; i < size; ++i) {
+			final int key = data.readInt();
+			if (key < 0 || key >= KEYS)
+				throw new IOException("Corrupt histogram file");
+			histogram.add(key, data.readLong(), data.readLong(), data.readLong(), data.readLong(), data.readLong());
+		}
+		return histogram;
+	}
+}
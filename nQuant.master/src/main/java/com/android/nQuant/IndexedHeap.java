@@ -0,0 +1,103 @@
+package com.android.nQuant;
+/* Indexed 4-ary min heap of items 0 .. capacity - 1 keyed by a float
+Copyright (c) 2026 Miller Cy Chan
+* Every item knows its position, so a changed or removed item is moved in place instead of lingering until it is popped.
+* A 4-ary heap is half as deep as a binary one and its children share a cache line. */
+
+final class IndexedHeap {
+	private final int[] heap;
+	private final int[] positions; /* position + 1 of every item, 0 when it is not in the heap */
+	private final float[] keys;
+	private int size = 0;
+
+	IndexedHeap(final int capacity)
+	{
+		heap = new int[capacity];
+		positions = new int[capacity];
+		keys = new float[capacity];
+	}
+
+	private void place(final int item, final int pos)
+	{
+		heap[pos] = item;
+		positions[item] = pos + 1;
+	}
+
+	private void siftUp(int pos)
+	{
+		final int item = heap[pos];
+		final float key = keys[item];
+		while (pos > 0) {
+			final int parent = (pos - 1) >> 2;
+			if (keys[heap[parent]] <= key)
+				break;
+			place(heap[parent], pos);
+			pos = parent;
+		}
+		place(item, pos);
+	}
+
+	private void siftDown(int pos)
+	{
+		final int item = heap[pos];
+		final float key = keys[item];
+		for (;;) {
+			final int first = (pos << 2) + 1;
+			if (first >= size)
+				break;
+
+			int child = first;
+			final int last = Math.min(first + 4, size);
+			for (int c = first + 1; c < last; ++c) {
+				if (keys[heap[c]] < keys[heap[child]])
+					child = c;
+			}
+			if (key <= keys[heap[child]])
+				break;
+			place(heap[child], pos);
+			pos = child;
+		}
+		place(item, pos);
+	}
+
+	int size()
+	{
+		return size;
+	}
+
+	/* Item with the least key */
+	int peek()
+	{
+		return heap[0];
+	}
+
+	void add(final int item, final float key)
+	{
+		keys[item] = key;
+		place(item, size);
+		siftUp(size++);
+	}
+
+	void update(final int item, final float key)
+	{
+		final float old = keys[item];
+		keys[item] = key;
+		if (key < old)
+			siftUp(positions[item] - 1);
+		else
+			siftDown(positions[item] - 1);
+	}
+
+	void remove(final int item)
+	{
+		final int pos = positions[item] - 1;
+		positions[item] = 0;
+		if (pos == --size)
+			return;
+
+		final int moved = heap[size];
+		place(moved, pos);
+		siftUp(pos);
+		siftDown(positions[moved] - 1);
+	}
+}
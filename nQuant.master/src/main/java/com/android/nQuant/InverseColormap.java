@@ -0,0 +1,159 @@
+package com.android.nQuant;
+/* Precomputed nearest and second nearest palette entries for every value of getColorIndex, kept in a file
+Copyright (c) 2026 Miller Cy Chan
+* The file is mapped read only, so every process using the same palette shares one copy through the page cache
+* and opening it reads nothing but the header. Each cell of the index space is represented by its center color. */
+
+import android.graphics.Color;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+public class InverseColormap implements Ditherable {
+	private static final int MAGIC = 0x4E514943; /* NQIC */
+	private static final int VERSION = 1;
+	private static final int SEMI_TRANSPARENCY = 1, TRANSPARENCY = 2;
+	private static final int CELLS = 65536;
+
+	private final MappedByteBuffer table;
+	private final int tableOffset;
+	private final boolean hasSemiTransparency, hasTransparency;
+	private final Palette palette;
+
+	private InverseColormap(final MappedByteBuffer table, final int tableOffset, final int flags, final Palette palette) {
+		this.table = table;
+		this.tableOffset = tableOffset;
+		this.hasSemiTransparency = (flags & SEMI_TRANSPARENCY) != 0;
+		this.hasTransparency = (flags & TRANSPARENCY) != 0;
+		this.palette = palette;
+	}
+
+	private static int headerSize(final int size)
+	{
+		/* magic, version, flags, size, colors, six weights, padded to 8 */
+		return (16 + 4 * size + 48 + 7) & ~7;
+	}
+
+	/* Center color of a cell, the inverse of BitmapUtilities.getColorIndex */
+	private static int cellColor(final int k, final boolean hasSemiTransparency, final boolean hasTransparency)
+	{
+		if (hasSemiTransparency)
+			return Color.argb((k >> 8 & 0xF0) | 8, (k >> 4 & 0xF0) | 8, (k & 0xF0) | 8, (k << 4 & 0xF0) | 8);
+		if (hasTransparency)
+			return Color.argb((k & 0x8000) != 0 ? BitmapUtilities.BYTE_MAX : 0, (k >> 7 & 0xF8) | 4, (k >> 2 & 0xF8) | 4, (k << 3 & 0xF8) | 4);
+		return Color.argb(BitmapUtilities.BYTE_MAX, (k >> 8 & 0xF8) | 4, (k >> 3 & 0xFC) | 2, (k << 3 & 0xF8) | 4);
+	}
+
+	private static void fillCell(final ByteBuffer out, final Palette palette, final int c)
+	{
+		final int[] colors = palette.colors;
+		double pr = palette.PR, pg = palette.PG, pb = palette.PB, pa = palette.PA;
+		if (colors.length < 3)
+			pr = pg = pb = pa = 1;
+
+		/* An opaque color never maps to a transparent first entry, as in PnnQuantizer.nearestColorIndex */
+		int k = colors.length > 2 && Color.alpha(colors[0]) == 0 && Color.alpha(c) > 0 ? 1 : 0;
+		int nearest = k, second = k;
+		double best = Double.MAX_VALUE, next = Double.MAX_VALUE;
+		for (; k < colors.length; ++k) {
+			final int c2 = colors[k];
+			final double dist = pa * BitmapUtilities.sqr(Color.alpha(c2) - Color.alpha(c)) + pr * BitmapUtilities.sqr(Color.red(c2) - Color.red(c))
+				+ pg * BitmapUtilities.sqr(Color.green(c2) - Color.green(c)) + pb * BitmapUtilities.sqr(Color.blue(c2) - Color.blue(c));
+			if (dist < best) {
+				second = nearest; next = best;
+				nearest = k; best = dist;
+			}
+			else if (dist < next) {
+				second = k; next = dist;
+			}
+		}
+		if (next == Double.MAX_VALUE)
+			second = nearest;
+		out.putShort((short) nearest);
+		out.putShort((short) second);
+	}
+
+	/* Builds the table for palette with the key layout getColorIndex uses for the given transparency */
+	public static void write(final File file, final Palette palette, final boolean hasSemiTransparency, final boolean hasTransparency) throws IOException
+	{
+		final int header = headerSize(palette.size());
+		final ByteBuffer out = ByteBuffer.allocate(header + 4 * CELLS);
+		out.putInt(MAGIC);
+		out.putInt(VERSION);
+		out.putInt((hasSemiTransparency ? SEMI_TRANSPARENCY : 0) | (hasTransparency ? TRANSPARENCY : 0));
+		out.putInt(palette.size());
+		for (int color : palette.colors)
+			out.putInt(color);
+		out.putDouble(palette.PR).putDouble(palette.PG).putDouble(palette.PB).putDouble(palette.PA);
+		out.putDouble(palette.ratio).putDouble(palette.weight);
+
+		out.position(header);
+		for (int k = 0; k < CELLS; ++k)
+			fillCell(out, palette, cellColor(k, hasSemiTransparency, hasTransparency));
+		out.flip();
+
+		/* Written next to the file and moved over it, so a crash or a reader that maps the file never sees half a table */
+		final File parent = file.getAbsoluteFile().getParentFile();
+		final Path temp = Files.createTempFile(parent.toPath(), file.getName(), ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				while (out.hasRemaining())
+					channel.write(out);
+				channel.force(false);
+			}
+			Files.move(temp, file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	public static InverseColormap open(final File file) throws IOException
+	{
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			final MappedByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (channel.size() < 16 || table.getInt(0) != MAGIC || table.getInt(4) != VERSION)
+				throw new IOException("Not an inverse colormap file");
+
+			/* Bounded like Palette.read, which also keeps headerSize from overflowing */
+			final int flags = table.getInt(8), size = table.getInt(12);
+			if (size <= 0 || size > Short.MAX_VALUE || channel.size() != headerSize(size) + 4L * CELLS)
+				throw new IOException("Corrupt inverse colormap file");
+
+			final int[] colors = new int[size];
+			for (int i = 0; i < size; ++i)
+				colors[i] = table.getInt(16 + 4 * i);
+			final int weights = 16 + 4 * size;
+			final Palette palette = new Palette(colors, table.getDouble(weights), table.getDouble(weights + 8), table.getDouble(weights + 16),
+				table.getDouble(weights + 24), table.getDouble(weights + 32), table.getDouble(weights + 40));
+			return new InverseColormap(table, headerSize(size), flags, palette);
+		}
+	}
+
+	public Palette getPalette() {
+		return palette;
+	}
+
+	@Override
+	public int getColorIndex(final int c) {
+		return BitmapUtilities.getColorIndex(c, hasSemiTransparency, hasTransparency);
+	}
+
+	/* Absolute reads only, so lookups are safe from several threads */
+	@Override
+	public short nearestColorIndex(final Integer[] palette, final int c, final int pos) {
+		return table.getShort(tableOffset + 4 * getColorIndex(c));
+	}
+
+	public short secondNearestColorIndex(final int c) {
+		return table.getShort(tableOffset + 4 * getColorIndex(c) + 2);
+	}
+}
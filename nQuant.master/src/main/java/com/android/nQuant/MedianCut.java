@@ -0,0 +1,128 @@
+package com.android.nQuant;
+/* Weighted median cut over histogram bins
+Copyright (c) 2026 Miller Cy Chan
+* Used as a cheap first stage that leaves the exact pairwise merge with a few bins per palette entry.
+* The box with the largest weighted squared error along its widest axis is split at its weighted median. */
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+final class MedianCut {
+	private static final class Box implements Comparable<Box> {
+		final int start, end;
+		int axis;
+		double score;
+
+		Box(final int start, final int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public int compareTo(final Box other) {
+			return Double.compare(other.score, score);
+		}
+	}
+
+	private final float[][] coords;
+	private final float[] weights;
+	private final int[] order;
+
+	private MedianCut(final float[][] coords, final float[] weights) {
+		this.coords = coords;
+		this.weights = weights;
+		order = new int[weights.length];
+		for (int i = 0; i < order.length; ++i)
+			order[i] = i;
+	}
+
+	private void measure(final Box box)
+	{
+		box.score = 0;
+		for (int c = 0; c < coords.length; ++c) {
+			double w = 0, sum = 0, sum2 = 0;
+			for (int k = box.start; k < box.end; ++k) {
+				final int i = order[k];
+				final double v = coords[c][i];
+				w += weights[i];
+				sum += weights[i] * v;
+				sum2 += weights[i] * v * v;
+			}
+			final double sse = sum2 - sum * sum / w;
+			if (sse > box.score) {
+				box.score = sse;
+				box.axis = c;
+			}
+		}
+	}
+
+	/* Sortable int with the same order as the float */
+	private static int sortKey(final float value)
+	{
+		final int bits = Float.floatToIntBits(value);
+		return bits ^ ((bits >> 31) & 0x7FFFFFFF);
+	}
+
+	private int split(final Box box)
+	{
+		final float[] axis = coords[box.axis];
+		final long[] entries = new long[box.end - box.start];
+		double total = 0;
+		for (int k = box.start; k < box.end; ++k) {
+			entries[k - box.start] = (long) sortKey(axis[order[k]]) << 32 | order[k];
+			total += weights[order[k]];
+		}
+		Arrays.sort(entries);
+
+		double w = 0;
+		int mid = box.start;
+		for (int k = 0; k < entries.length; ++k) {
+			order[box.start + k] = (int) entries[k];
+			if (w < total / 2) {
+				w += weights[order[box.start + k]];
+				mid = box.start + k + 1;
+			}
+		}
+		return Math.min(mid, box.end - 1);
+	}
+
+	/* Groups the bins into at most boxes boxes, coords holds one array per channel.
+	 * Returns the box of every bin, numbered in the order of the first bin in each box. */
+	static int[] partition(final float[][] coords, final float[] weights, final int boxes)
+	{
+		final MedianCut cut = new MedianCut(coords, weights);
+		final PriorityQueue<Box> queue = new PriorityQueue<>();
+		final Box all = new Box(0, weights.length);
+		cut.measure(all);
+		queue.add(all);
+
+		while (queue.size() < boxes && queue.peek().score > 0) {
+			final Box box = queue.poll();
+			final int mid = cut.split(box);
+			final Box lower = new Box(box.start, mid), upper = new Box(mid, box.end);
+			cut.measure(lower);
+			cut.measure(upper);
+			queue.add(lower);
+			queue.add(upper);
+		}
+
+		final int[] boxOf = new int[weights.length];
+		int n = 0;
+		for (Box box : queue) {
+			for (int k = box.start; k < box.end; ++k)
+				boxOf[cut.order[k]] = n;
+			++n;
+		}
+
+		/* Renumber by first bin */
+		final int[] renumber = new int[n];
+		Arrays.fill(renumber, -1);
+		n = 0;
+		for (int i = 0; i < boxOf.length; ++i) {
+			if (renumber[boxOf[i]] < 0)
+				renumber[boxOf[i]] = n++;
+			boxOf[i] = renumber[boxOf[i]];
+		}
+		return boxOf;
+	}
+}
@@ -0,0 +1,81 @@
+package com.android.nQuant;
+/* Ordered dithering with a Bayer or blue noise threshold map
+Copyright (c) 2026 Miller Cy Chan
+* Every pixel is offset by a position dependent threshold before the palette lookup, no error is propagated,
+* so the rows can be processed independently of each other. */
+
+import android.graphics.Color;
+
+import java.util.stream.IntStream;
+
+import static com.android.nQuant.BitmapUtilities.BYTE_MAX;
+
+public class OrderedDither {
+	private static final byte[] BAYER_8X8 = {
+		0, 32, 8, 40, 2, 34, 10, 42,
+		48, 16, 56, 24, 50, 18, 58, 26,
+		12, 44, 4, 36, 14, 46, 6, 38,
+		60, 28, 52, 20, 62, 30, 54, 22,
+		3, 35, 11, 43, 1, 33, 9, 41,
+		51, 19, 59, 27, 49, 17, 57, 25,
+		15, 47, 7, 39, 13, 45, 5, 37,
+		63, 31, 55, 23, 61, 29, 53, 21
+	};
+
+	/* Size of the nearest color table, one slot per value of Ditherable.getColorIndex */
+	public static final int LOOKUP_SIZE = 65536;
+
+	private static float threshold(final int x, final int y, final boolean bayer)
+	{
+		if (bayer)
+			return (BAYER_8X8[(x & 7) | (y & 7) << 3] + .5f) / 64f - .5f;
+		return (BlueNoise.TELL_BLUE_NOISE[(x & 63) | (y & 63) << 6] + .5f) / 255f;
+	}
+
+	private static short lookupIndex(final Integer[] palette, final Ditherable ditherable, final short[] lookup, final int c, final int pos)
+	{
+		final int offset = ditherable.getColorIndex(c);
+		short k = lookup[offset];
+		if (k == 0) {
+			/* The caches behind nearestColorIndex are not thread safe, a miss is resolved under lock,
+			 * the table itself is written with the same value by whichever row gets there first. */
+			synchronized (ditherable) {
+				if ((k = lookup[offset]) == 0)
+					lookup[offset] = k = (short) (ditherable.nearestColorIndex(palette, c, pos) + 1);
+			}
+		}
+		return (short) (k - 1);
+	}
+
+	private static void ditherRow(final int y, final int width, final int[] pixels, final Integer[] palette, final Ditherable ditherable, final short[] lookup, final int[] qPixels, final float spread, final boolean bayer)
+	{
+		final int noiseX = BlueNoise.offsetX(ditherable.getBlueNoisePhase()), noiseY = BlueNoise.offsetY(ditherable.getBlueNoisePhase());
+		for (int x = 0; x < width; ++x) {
+			final int bidx = x + y * width;
+			final int pixel = pixels[bidx];
+			if (Color.alpha(pixel) == 0) {
+				qPixels[bidx] = palette[0];
+				continue;
+			}
+
+			final int adj = Math.round(threshold(x + noiseX, y + noiseY, bayer) * spread);
+			int r_pix = Math.min(BYTE_MAX, Math.max(Color.red(pixel) + adj, 0));
+			int g_pix = Math.min(BYTE_MAX, Math.max(Color.green(pixel) + adj, 0));
+			int b_pix = Math.min(BYTE_MAX, Math.max(Color.blue(pixel) + adj, 0));
+			int c1 = Color.argb(Color.alpha(pixel), r_pix, g_pix, b_pix);
+			qPixels[bidx] = palette[lookupIndex(palette, ditherable, lookup, c1, bidx)];
+		}
+	}
+
+	/* Pass null as lookup for a one-off image; a short[LOOKUP_SIZE] kept by the caller is reused across frames that share the palette,
+	 * so a warm table turns every pixel into a table read. strength scales the threshold against the average palette spacing. */
+	public static int[] dither(final int width, final int height, final int[] pixels, final Integer[] palette, final Ditherable ditherable, short[] lookup, final float strength, final boolean bayer)
+	{
+		final int[] qPixels = new int[pixels.length];
+		final short[] table = lookup != null ? lookup : new short[LOOKUP_SIZE];
+		final float spread = strength * BYTE_MAX / (float) Math.cbrt(palette.length);
+
+		IntStream.range(0, height).parallel().forEach(y -> ditherRow(y, width, pixels, palette, ditherable, table, qPixels, spread, bayer));
+		return qPixels;
+	}
+}
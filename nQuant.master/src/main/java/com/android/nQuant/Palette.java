@@ -0,0 +1,86 @@
+package com.android.nQuant;
+/* A palette together with the metric it was made with, so images can be mapped onto it without running the quantizer
+Copyright (c) 2026 Miller Cy Chan
+* The binary form is a magic number, the color count, the ARGB colors and the metric weights, all big endian. */
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+public class Palette {
+	private static final int MAGIC = 0x4E515031; /* NQP1 */
+	/* Palette entries are indexed by shorts */
+	private static final int MAX_COLORS = Short.MAX_VALUE;
+
+	final int[] colors;
+	final double PR, PG, PB, PA, ratio, weight;
+
+	Palette(final int[] colors, final double PR, final double PG, final double PB, final double PA, final double ratio, final double weight) {
+		this.colors = colors.clone();
+		this.PR = PR;
+		this.PG = PG;
+		this.PB = PB;
+		this.PA = PA;
+		this.ratio = ratio;
+		this.weight = weight;
+	}
+
+	/* A given palette, such as brand colors, with the metric a quantizer would start with for its size.
+	 * A transparent color should come first. */
+	public Palette(final int[] colors) {
+		this(colors, colors.length <= 32 ? 1 : PnnQuantizer.coeffs[0][0], colors.length <= 32 ? 1 : PnnQuantizer.coeffs[0][1],
+			colors.length <= 32 ? 1 : PnnQuantizer.coeffs[0][2], colors.length <= 32 ? 1 : .3333, .5, 1);
+	}
+
+	public int size() {
+		return colors.length;
+	}
+
+	public int[] getColors() {
+		return colors.clone();
+	}
+
+	Integer[] toArray() {
+		Integer[] palette = new Integer[colors.length];
+		for (int i = 0; i < palette.length; ++i)
+			palette[i] = colors[i];
+		return palette;
+	}
+
+	public void write(final OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(MAGIC);
+		data.writeInt(colors.length);
+		for (int color : colors)
+			data.writeInt(color);
+		data.writeDouble(PR);
+		data.writeDouble(PG);
+		data.writeDouble(PB);
+		data.writeDouble(PA);
+		data.writeDouble(ratio);
+		data.writeDouble(weight);
+		data.flush();
+	}
+
+	public static Palette read(final InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		if (data.readInt() != MAGIC)
+			throw new IOException("Not a palette file");
+
+		final int size = data.readInt();
+		if (size < 0 || size > MAX_COLORS)
+			throw new IOException("Corrupt palette file");
+
+		/* Grown as the colors arrive, so a damaged count cannot allocate more than the stream holds */
+		int[] colors = new int[Math.min(size, 256)];
+		for (int i = 0; i < size; ++i) {
+			if (i == colors.length)
+				colors = Arrays.copyOf(colors, Math.min(size, colors.length << 1));
+			colors[i] = data.readInt();
+		}
+		return new Palette(colors, data.readDouble(), data.readDouble(), data.readDouble(), data.readDouble(), data.readDouble(), data.readDouble());
+	}
+}
@@ -4,20 +4,35 @@ package com.android.nQuant;
 Copyright (c) 2018-2026 Miller Cy Chan
 * error measure; time used is proportional to number of bins squared - WJ */
 
+import android.graphics.Bitmap;
 import android.graphics.Color;
 
 import com.android.nQuant.CIELABConvertor.Lab;
 import com.android.nQuant.CIELABConvertor.MutableDouble;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class PnnLABQuantizer extends PnnQuantizer {
 	private boolean isNano = false;
-	protected float[] saliencies;
+	protected SaliencyMap saliencies;
+	private SaliencyMap saliencyMap;
+	/* Lab of the source colors, kept across conversions; labMap holds the other colors met while dithering.
+	 * Within a memory budget pixelMap stops growing at lookupLimit colors, the rest go to labMap. */
 	private final Map<Integer, Lab> pixelMap = new HashMap<>();
+	private final Map<Integer, Lab> labMap = new HashMap<>();
+	private boolean pixelMapBounded = false;
+	private final Pnnbin[][] histograms = new Pnnbin[2][];
+	/* Distinct source colors with their counts, the histogram and the saliency map work per color */
+	private ColorTable sourceColors;
+	/* Blue noise strength of the last dithering of the whole image, a rectangle dithered again keeps it
+	 * since pixelMap no longer holds the colors it was worked out from */
+	private float imageBlueNoiseWeight = Float.NaN;
+	private boolean ditheringRect = false;
 	
 	private static Random random = new Random();
 
@@ -25,22 +40,166 @@ public class PnnLABQuantizer extends PnnQuantizer {
 		super(fname);
 	}
 
+	public PnnLABQuantizer(Bitmap bitmap) {
+		super(bitmap);
+	}
+
 	private static final class Pnnbin {
 		float ac = 0, Lc = 0, Ac = 0, Bc = 0, err = 0;
-		float cnt = 0;
+		float cnt = 0, pop = 0;
 		int nn, fw, bk, tm, mtm;
+
+		private Pnnbin() {
+		}
+
+		private Pnnbin(Pnnbin bin) {
+			ac = bin.ac; Lc = bin.Lc; Ac = bin.Ac; Bc = bin.Bc;
+			cnt = bin.cnt;
+		}
 	}
 
-	private Lab getLab(final int c)
+	private Lab getSourceLab(final int c)
 	{
 		Lab lab1 = pixelMap.get(c);
 		if (lab1 == null) {
 			lab1 = CIELABConvertor.RGB2LAB(c);
-			pixelMap.put(c, lab1);
+			if (pixelMap.size() < lookupLimit)
+				pixelMap.put(c, lab1);
+			else
+				pixelMapBounded = true;
 		}
 		return lab1;
 	}
 
+	private Lab getLab(final int c)
+	{
+		Lab lab1 = pixelMap.get(c);
+		if (lab1 == null) {
+			lab1 = labMap.get(c);
+			if (lab1 == null) {
+				lab1 = CIELABConvertor.RGB2LAB(c);
+				putLookup(labMap, c, lab1);
+			}
+		}
+		return lab1;
+	}
+
+	@Override
+	protected void reset(int nMaxColors) {
+		super.reset(nMaxColors);
+		isNano = false;
+		saliencies = null;
+	}
+
+	@Override
+	protected void clearLookups() {
+		super.clearLookups();
+		labMap.clear();
+	}
+
+	@Override
+	public void setBitmap(Bitmap bitmap) {
+		super.setBitmap(bitmap);
+		pixelMap.clear();
+		pixelMapBounded = false;
+		Arrays.fill(histograms, null);
+		sourceColors = null;
+		saliencyMap = null;
+		imageBlueNoiseWeight = Float.NaN;
+	}
+
+	/* CIELAB starts out at twice the cost of RGB */
+	private static final AtomicLongArray COST_SCALES = newCostScales(2, 2);
+
+	@Override
+	protected AtomicLongArray getSharedCostScales() {
+		return COST_SCALES;
+	}
+
+	@Override
+	protected boolean hasFixedPoint() {
+		return false;
+	}
+
+	@Override
+	protected void setPixels(final int[] rect, final int left, final int top, final int w, final int h) {
+		super.setPixels(rect, left, top, w, h);
+		pixelMap.clear();
+		pixelMapBounded = false;
+		sourceColors = null;
+		if (saliencyMap != null)
+			saliencyMap.update(pixels, width, left, top, w, h);
+	}
+
+	/* The saliencies, when the last conversion used them or the dithering will, are cut to the rectangle as well */
+	@Override
+	protected int[] ditherRect(final int left, final int top, final int w, final int h, final boolean dither) throws Exception {
+		final SaliencyMap imageSaliencies = saliencies;
+		if (imageSaliencies != null)
+			saliencies = imageSaliencies.crop(width, left, top, w, h);
+		else if (usesSaliency(dither, getPaletteSize()))
+			saliencies = getSaliencyMap().crop(width, left, top, w, h);
+		ditheringRect = true;
+		try {
+			return super.ditherRect(left, top, w, h, dither);
+		}
+		finally {
+			saliencies = imageSaliencies;
+			ditheringRect = false;
+		}
+	}
+
+	@Override
+	protected void setMetric(Palette palette) {
+		super.setMetric(palette);
+		isNano = weight <= .015;
+		saliencies = palette.size() >= 128 ? null : getSaliencyMap();
+	}
+
+	/* ratio follows the share of bins kept all the way down, so no two sizes are tuned alike.
+	 * A ladder then runs one merge per size, still sharing the histogram, pixelMap and saliency map. */
+	@Override
+	protected int getTuningBand(int nMaxColors) {
+		return nMaxColors;
+	}
+
+	@Override
+	protected void setPaletteSize(int nMaxColors) {
+		super.setPaletteSize(nMaxColors);
+		isNano = weight <= .015;
+		saliencies = nMaxColors >= 128 ? null : getSaliencyMap();
+	}
+
+	/* Computed once per decoded image and reused by later conversions */
+	protected SaliencyMap getSaliencyMap()
+	{
+		if (saliencyMap == null)
+			saliencyMap = SaliencyMap.compute(pixels, getSourceColors(), compactSaliency);
+		return saliencyMap;
+	}
+
+	private boolean usesSaliency(final boolean dither, final int nMaxColors)
+	{
+		return dither && ditherer.usesSaliency() && (nMaxColors <= 256 || getDitherWeight() > .99);
+	}
+
+	@Override
+	protected int getSaliencyBytes(int nMaxColors, boolean dither) {
+		if (nMaxColors >= 128 && !usesSaliency(dither, nMaxColors))
+			return 0;
+		if (saliencyMap != null)
+			return saliencyMap.isCompact() ? 1 : 2;
+		return compactSaliency ? 1 : 2;
+	}
+
+	/* Lab of a source color, with its node and boxed key, and its slot in the source color table */
+	private static final int LAB_BYTES = 88, SOURCE_COLOR_BYTES = 36;
+
+	@Override
+	protected long estimateBytes(int nMaxColors, boolean dither, long colors, int bins, int rows) {
+		return super.estimateBytes(nMaxColors, dither, colors, bins, rows) + Math.min(colors, lookupLimit) * LAB_BYTES + colors * SOURCE_COLOR_BYTES;
+	}
+
 	private void find_nn(Pnnbin[] bins, int idx, boolean texicab)
 	{
 		int nn = 0;
@@ -127,50 +286,182 @@ public class PnnLABQuantizer extends PnnQuantizer {
 		return cnt -> cnt;
 	}
 
+	private ColorTable getSourceColors()
+	{
+		if (sourceColors == null)
+			sourceColors = ColorTable.compact(pixels);
+		return sourceColors;
+	}
+
 	@Override
-	protected Integer[] pnnquan(final int[] pixels, int nMaxColors)
+	protected boolean useExactBins(final int[] pixels)
 	{
-		short quan_rt = (short) 1;
-		Pnnbin[] bins = new Pnnbin[65536];
-		saliencies = nMaxColors >= 128 ? null : new float[pixels.length];
-		float saliencyBase = .1f;
+		return pixels == this.pixels && getSourceColors().size() <= EXACT_BINS;
+	}
 
-		/* Build histogram */
-		for (int i = 0; i < pixels.length; ++i) {
-			int pixel = pixels[i];
+	private Pnnbin[] buildHistogram(final int[] pixels, final boolean hasTransparency)
+	{
+		final boolean exact = useExactBins(pixels);
+		final ColorTable table = exact || pixels.length < SPARSE_PIXELS ? new ColorTable(1 << 12) : null;
+		Pnnbin[] bins = new Pnnbin[table != null ? 1 << 12 : 65536];
+
+		/* Build histogram, once per distinct color weighted by its count */
+		final ColorTable colors = pixels == this.pixels ? getSourceColors() : ColorTable.compact(pixels);
+		final int[] palette = colors.colors();
+		for (int k = 0; k < palette.length; ++k) {
+			if ((k & HISTOGRAM_PROGRESS_MASK) == 0)
+				checkProgress(HISTOGRAM_PROGRESS * k / palette.length);
+
+			int pixel = palette[k];
 			if (Color.alpha(pixel) <= alphaThreshold)
 				pixel = m_transparentColor;
 			
-			int index = BitmapUtilities.getColorIndex(pixel, hasSemiTransparency, nMaxColors < 64 || m_transparentPixelIndex >= 0);
-			Lab lab1 = getLab(pixel);
+			int index = exact ? pixel : BitmapUtilities.getColorIndex(pixel, hasSemiTransparency, hasTransparency);
+			if (table != null) {
+				index = table.add(index);
+				if (index == bins.length)
+					bins = Arrays.copyOf(bins, index << 1);
+			}
+			Lab lab1 = getSourceLab(pixel);
 
 			if(bins[index] == null)
 				bins[index] = new Pnnbin();
 			Pnnbin tb = bins[index];
-			tb.ac += lab1.alpha;
-			tb.Lc += lab1.L;
-			tb.Ac += lab1.A;
-			tb.Bc += lab1.B;
-			tb.cnt += 1.0f;
-			if(saliencies != null)
-				saliencies[i] = saliencyBase + (1 - saliencyBase) * lab1.L / 100f * lab1.alpha / 255f;
+			final int count = colors.count(k);
+			tb.ac += lab1.alpha * count;
+			tb.Lc += lab1.L * count;
+			tb.Ac += lab1.A * count;
+			tb.Bc += lab1.B * count;
+			tb.cnt += count;
 		}
 
-		/* Cluster nonempty bins at one end of array */
+		/* Cluster nonempty bins at one end of array, in the order of their keys */
+		final int[] order = table != null ? table.sortedIndices() : null;
+		final Pnnbin[] histogram = order != null ? new Pnnbin[order.length] : bins;
 		int maxbins = 0;
+		for (int i = 0; i < (order != null ? order.length : bins.length); ++i) {
+			Pnnbin tb = bins[order != null ? order[i] : i];
+			if (tb == null)
+				continue;
+
+			float d = 1f / tb.cnt;
+			tb.ac *= d;
+			tb.Lc *= d;
+			tb.Ac *= d;
+			tb.Bc *= d;
+
+			histogram[maxbins++] = tb;
+		}
+
+		return maxbins == histogram.length ? histogram : Arrays.copyOf(histogram, maxbins);
+	}
+
+	private Pnnbin[] getHistogram(final int[] pixels, final boolean hasTransparency)
+	{
+		if (pixels != this.pixels)
+			return buildHistogram(pixels, hasTransparency);
+
+		final int key = hasTransparency ? 1 : 0;
+		if (histograms[key] == null)
+			histograms[key] = buildHistogram(pixels, hasTransparency);
+
+		/* The merge works on the bins in place */
+		Pnnbin[] bins = new Pnnbin[histograms[key].length];
+		for (int i = 0; i < bins.length; ++i)
+			bins[i] = new Pnnbin(histograms[key][i]);
+		return bins;
+	}
 
+	/* Squared CIELAB distance added to the image when two bins become one, counted over the real pixels */
+	private double mergeError(final Pnnbin tb, final Pnnbin nb)
+	{
+		double err = BitmapUtilities.sqr(tb.Lc - nb.Lc) + BitmapUtilities.sqr(tb.Ac - nb.Ac) + BitmapUtilities.sqr(tb.Bc - nb.Bc);
+		if (hasSemiTransparency)
+			err += BitmapUtilities.sqr(tb.ac - nb.ac);
+		return err * tb.pop * nb.pop / (tb.pop + nb.pop);
+	}
+
+	/* Cuts the bins down to preReduction * nMaxColors with a median cut before the exact merge */
+	private Pnnbin[] preReduce(final Pnnbin[] bins, final int nMaxColors)
+	{
+		final int boxes = preReduction * nMaxColors;
+		if (preReduction <= 0 || bins.length <= boxes)
+			return bins;
+
+		final float[][] coords = new float[hasSemiTransparency ? 4 : 3][bins.length];
+		final float[] weights = new float[bins.length];
 		for (int i = 0; i < bins.length; ++i) {
-			if (bins[i] == null)
-				continue;
+			coords[0][i] = bins[i].Lc;
+			coords[1][i] = bins[i].Ac;
+			coords[2][i] = bins[i].Bc;
+			if (hasSemiTransparency)
+				coords[3][i] = bins[i].ac;
+			weights[i] = bins[i].cnt;
+		}
+
+		final int[] boxOf = MedianCut.partition(coords, weights, boxes);
+		Pnnbin[] reduced = new Pnnbin[boxes];
+		int maxbins = 0;
+		for (int i = 0; i < bins.length; ++i) {
+			if (reduced[boxOf[i]] == null)
+				reduced[maxbins++] = new Pnnbin();
+			Pnnbin tb = reduced[boxOf[i]];
+			float n = bins[i].cnt;
+			tb.ac += n * bins[i].ac;
+			tb.Lc += n * bins[i].Lc;
+			tb.Ac += n * bins[i].Ac;
+			tb.Bc += n * bins[i].Bc;
+			tb.cnt += n;
+		}
 
-			float d = 1f / bins[i].cnt;
-			bins[i].ac *= d;
-			bins[i].Lc *= d;
-			bins[i].Ac *= d;
-			bins[i].Bc *= d;
+		for (int i = 0; i < maxbins; ++i) {
+			float d = 1f / reduced[i].cnt;
+			reduced[i].ac *= d;
+			reduced[i].Lc *= d;
+			reduced[i].Ac *= d;
+			reduced[i].Bc *= d;
+		}
+		return Arrays.copyOf(reduced, maxbins);
+	}
+
+	@Override
+	protected Integer[][] pnnquan(final int[] pixels, final int[] targets, final double maxError)
+	{
+		Pnnbin[] bins = getHistogram(pixels, targets[0] < 64 || m_transparentPixelIndex >= 0);
+		saliencies = targets[0] >= 128 ? null : getSaliencyMap();
+		return pnnquan(bins, pixels.length, targets, maxError, true);
+	}
 
-			bins[maxbins++] = bins[i];
+	/* Bins of a histogram merged from several images, the Lab of every bin is taken at its mean color */
+	private static Pnnbin[] toBins(final Histogram histogram)
+	{
+		final double[][] means = histogram.bins();
+		Pnnbin[] bins = new Pnnbin[means.length];
+		for (int i = 0; i < bins.length; ++i) {
+			Lab lab1 = CIELABConvertor.RGB2LAB(Color.argb((int) Math.round(means[i][0]), (int) Math.round(means[i][1]),
+				(int) Math.round(means[i][2]), (int) Math.round(means[i][3])));
+			Pnnbin tb = bins[i] = new Pnnbin();
+			tb.ac = lab1.alpha;
+			tb.Lc = lab1.L;
+			tb.Ac = lab1.A;
+			tb.Bc = lab1.B;
+			tb.cnt = (float) means[i][4];
 		}
+		return bins;
+	}
+
+	@Override
+	protected Integer[][] pnnquan(final Histogram histogram, final int[] targets)
+	{
+		return pnnquan(toBins(histogram), histogram.pixelCount(), targets, 0, false);
+	}
+
+	/* fromImage tells that the bins come from this image, so pixelMap holds its colors */
+	private Integer[][] pnnquan(Pnnbin[] bins, final long pixelCount, final int[] targets, final double maxError, final boolean fromImage)
+	{
+		final int nMaxColors = targets[0];
+		short quan_rt = (short) 1;
+		int maxbins = m_binCount = bins.length;
 
 		double proportional = BitmapUtilities.sqr(nMaxColors) / maxbins;
 		if((m_transparentPixelIndex >= 0 || hasSemiTransparency) && nMaxColors < 32)
@@ -190,7 +481,7 @@ public class PnnLABQuantizer extends PnnQuantizer {
 				quan_rt = 2;
 		}
 		
-		if(pixelMap.size() <= nMaxColors) {
+		if(fromImage && !pixelMapBounded && pixelMap.size() <= targets[targets.length - 1]) {
 			/* Fill palette */
 			Integer[] palette = new Integer[pixelMap.size()];
 			int k = 0;
@@ -202,18 +493,25 @@ public class PnnLABQuantizer extends PnnQuantizer {
 				}
 			}
 
-			return palette;
+			Integer[][] palettes = new Integer[targets.length][];
+			Arrays.fill(palettes, palette);
+			return palettes;
 		}
 		
 		QuanFn quanFn = getQuanFn(nMaxColors, quan_rt);
+		bins = preReduce(bins, nMaxColors);
+		maxbins = bins.length;
 
 		int j = 0;
 		for (; j < maxbins - 1; ++j) {
 			bins[j].fw = j + 1;
 			bins[j + 1].bk = j;
 
+			bins[j].pop = bins[j].cnt;
+
 			bins[j].cnt = quanFn.get(bins[j].cnt);
 		}
+		bins[j].pop = bins[j].cnt;
 		bins[j].cnt = quanFn.get(bins[j].cnt);
 
 		final boolean texicab = proportional > .0225 && !hasSemiTransparency;
@@ -240,20 +538,13 @@ public class PnnLABQuantizer extends PnnQuantizer {
 		if (!hasSemiTransparency && quan_rt < 0)
 			ratio = Math.min(1.0, weight * Math.exp(3.13));
 
-		int h, l, l2;
 		/* Initialize nearest neighbors and build heap of them */
-		int[] heap = new int[bins.length + 1];
+		IndexedHeap heap = new IndexedHeap(maxbins);
 		for (int i = 0; i < maxbins; ++i) {
+			if ((i & MERGE_PROGRESS_MASK) == 0)
+				checkProgress(HISTOGRAM_PROGRESS + (MERGE_PROGRESS - HISTOGRAM_PROGRESS) / 2 * i / maxbins);
 			find_nn(bins, i, texicab);
-			/* Push slot on heap */
-			float err = bins[i].err;
-			for (l = ++heap[0]; l > 1; l = l2) {
-				l2 = l >> 1;
-				if (bins[h = heap[l2]].err <= err)
-					break;
-				heap[l] = h;
-			}
-			heap[l] = i;
+			heap.add(i, bins[i].err);
 		}
 
 		if (quan_rt > 0 && nMaxColors < 64 && proportional > .035 && proportional < .1) {
@@ -264,37 +555,37 @@ public class PnnLABQuantizer extends PnnQuantizer {
 		}
 
 		/* Merge bins which increase error the least */
-		int extbins = maxbins - nMaxColors;
-		for (int i = 0; i < extbins; ) {
-			Pnnbin tb;
-			/* Use heap to find which bins to merge */
-			for (;;) {
-				int b1 = heap[1];
-				tb = bins[b1]; /* One with least error */
-				/* Is stored error up to date? */
-				if ((tb.tm >= tb.mtm) && (bins[tb.nn].mtm <= tb.tm))
-					break;
-				if (tb.mtm == 0xFFFF) /* Deleted node */
-					b1 = heap[1] = heap[heap[0]--];
-				else /* Too old error value */
-				{
-					find_nn(bins, b1, texicab);
-					tb.tm = i;
-				}
-				/* Push slot down */
-				float err = bins[b1].err;
-				for (l = 1; (l2 = l + l) <= heap[0]; l = l2) {
-					if ((l2 < heap[0]) && (bins[heap[l2]].err > bins[heap[l2 + 1]].err))
-						++l2;
-					if (err <= bins[h = heap[l2]].err)
-						break;
-					heap[l] = h;
-				}
-				heap[l] = b1;
+		Integer[][] palettes = new Integer[targets.length][];
+		int t = 0;
+		for (; t < targets.length && maxbins <= targets[t]; ++t)
+			palettes[t] = fillPalette(bins, maxbins);
+
+		double sse = 0, budget = maxError * maxError * pixelCount;
+		int extbins = maxbins - targets[targets.length - 1];
+		int i = 0;
+		while (i < extbins) {
+			if ((i & MERGE_PROGRESS_MASK) == 0)
+				checkProgress(HISTOGRAM_PROGRESS + (MERGE_PROGRESS - HISTOGRAM_PROGRESS) / 2 * (1f + (float) i / extbins));
+
+			/* Use heap to find which bins to merge, a stored error is out of date once its neighbor has been merged */
+			int b1 = heap.peek();
+			Pnnbin tb = bins[b1]; /* One with least error */
+			while (bins[tb.nn].mtm > tb.tm) {
+				find_nn(bins, b1, texicab);
+				tb.tm = i;
+				heap.update(b1, tb.err);
+				tb = bins[b1 = heap.peek()];
 			}
 
 			/* Do a merge */
-			Pnnbin nb = bins[tb.nn];
+			final int b2 = tb.nn;
+			Pnnbin nb = bins[b2];
+			if (maxError > 0) {
+				sse += mergeError(tb, nb);
+				if (t > 0 && sse > budget)
+					break;
+			}
+
 			float n1 = tb.cnt;
 			float n2 = nb.cnt;
 			float d = 1.0f / (n1 + n2);
@@ -303,16 +594,35 @@ public class PnnLABQuantizer extends PnnQuantizer {
 			tb.Ac = d * (n1 * tb.Ac + n2 * nb.Ac);
 			tb.Bc = d * (n1 * tb.Bc + n2 * nb.Bc);
 			tb.cnt += n2;
+			tb.pop += nb.pop;
 			tb.mtm = ++i;
 
 			/* Unchain deleted bin */
 			bins[nb.bk].fw = nb.fw;
 			bins[nb.fw].bk = nb.bk;
 			nb.mtm = 0xFFFF;
+			heap.remove(b2);
+
+			/* The merged bin gets its new neighbor right away */
+			if (i < extbins) {
+				find_nn(bins, b1, texicab);
+				tb.tm = i;
+				heap.update(b1, tb.err);
+			}
+
+			for (; t < targets.length && maxbins - i <= targets[t]; ++t)
+				palettes[t] = fillPalette(bins, maxbins - i);
 		}
 
+		for (; t < targets.length; ++t)
+			palettes[t] = fillPalette(bins, maxbins - i);
+		return palettes;
+	}
+
+	private static Integer[] fillPalette(final Pnnbin[] bins, final int size)
+	{
 		/* Fill palette */
-		Integer[] palette = new Integer[extbins > 0 ? nMaxColors : maxbins];
+		Integer[] palette = new Integer[size];
 		short k = 0;
 		for (int i = 0; k < palette.length; ++k) {
 			Lab lab1 = new Lab();
@@ -399,7 +709,7 @@ public class PnnLABQuantizer extends PnnQuantizer {
 			mindist = curdist;
 			k = i;
 		}
-		nearestMap.put(offset, k);
+		putLookup(nearestMap, offset, k);
 		return k;
 	}
 
@@ -460,7 +770,7 @@ public class PnnLABQuantizer extends PnnQuantizer {
 			if (closest[3] == Integer.MAX_VALUE)
 				closest[1] = closest[0];
 
-			closestMap.put(offset, closest);
+			putLookup(closestMap, offset, closest);
 		}
 		
 		int idx = 1;
@@ -486,6 +796,28 @@ public class PnnLABQuantizer extends PnnQuantizer {
 					return PnnLABQuantizer.this.nearestColorIndex(palette, c, pos);
 				return PnnLABQuantizer.this.closestColorIndex(palette, c, pos);
 			}
+
+			@Override
+			public float getBlueNoiseWeight(Integer[] palette) {
+				if (ditheringRect && !Float.isNaN(imageBlueNoiseWeight))
+					return imageBlueNoiseWeight;
+
+				double delta = BitmapUtilities.sqr(palette.length) / (pixelMap.size() + labMap.size());
+				float blueNoiseWeight = delta > 0.023 ? 1.0f : (float) (37.013 * delta + 0.906);
+				if (!ditheringRect)
+					imageBlueNoiseWeight = blueNoiseWeight;
+				return blueNoiseWeight;
+			}
+
+			@Override
+			public int getBlueNoisePhase() {
+				return blueNoisePhase;
+			}
+
+			@Override
+			public void checkProgress(final float progress) {
+				checkDitherProgress(progress);
+			}
 		};
 	}
 
@@ -493,32 +825,17 @@ public class PnnLABQuantizer extends PnnQuantizer {
 	protected int[] dither(final int[] cPixels, Integer[] palette, int width, int height, boolean dither) throws Exception
 	{
 		Ditherable ditherable = getDitherFn();
-		if(hasSemiTransparency)
-			weight *= -1;
-
-		if(dither && saliencies == null && (palette.length <= 256 || weight > .99)) {
-			saliencies = new float[pixels.length];
-			float saliencyBase = .1f;
-
-			for (int i = 0; i < pixels.length; ++i) {
-				Lab lab1 = getLab(pixels[i]);
-
-				saliencies[i] = saliencyBase + (1 - saliencyBase) * lab1.L / 100f * lab1.alpha / 255f;
-			}
+		if(saliencies == null && usesSaliency(dither, palette.length))
+			saliencies = getSaliencyMap();
+		try {
+			int[] qPixels = ditherer.dither(width, height, cPixels, palette, ditherable, saliencies, getDitherWeight(), dither);
+			checkDitherProgress(1);
+			return qPixels;
 		}
-		int[] qPixels = GilbertCurve.dither(width, height, cPixels, palette, ditherable, saliencies, weight, dither);
-
-		if (!dither && palette.length > 32) {
-			double delta = BitmapUtilities.sqr(palette.length) / pixelMap.size();
-			float weight = delta > 0.023 ? 1.0f : (float) (37.013 * delta + 0.906);
-			BlueNoise.dither(width, height, cPixels, palette, ditherable, qPixels, weight);
+		finally {
+			if (!keepsLookups())
+				clearLookups();
 		}
-
-		closestMap.clear();
-		nearestMap.clear();
-		pixelMap.clear();
-
-		return qPixels;
 	}
 
 }
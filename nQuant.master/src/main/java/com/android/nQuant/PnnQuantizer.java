@@ -7,9 +7,18 @@ Copyright (c) 2018-2026 Miller Cy Chan
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Color;
+import android.os.CancellationSignal;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import static com.android.nQuant.BitmapUtilities.BYTE_MAX;
 
@@ -17,10 +26,23 @@ public class PnnQuantizer {
 	protected short alphaThreshold = 0xF;
 	protected boolean hasSemiTransparency = false;
 	protected int m_transparentPixelIndex = -1;
-	protected int width, height;
+	protected int width, height, m_binCount;
 	protected int[] pixels = null;
 	protected Integer m_transparentColor = Color.argb(0, BYTE_MAX, BYTE_MAX, BYTE_MAX);
 
+	/* The decoded image is kept with its transparency analysis and histograms, so convert can be called many times */
+	private boolean analyzed = false;
+	private int m_transparentPixel;
+	private final Pnnbin[][] histograms = new Pnnbin[2][];
+	private int[] m_distinctColors;
+	private int m_tooManyColors = 0;
+
+	/* Histogram resolution: an image of at most EXACT_BINS colors keeps one bin per color,
+	 * otherwise colors are packed into the 16 bits of getColorIndex.
+	 * Images below SPARSE_PIXELS hash their bins instead of indexing a 65536 slot array. */
+	protected static final int EXACT_BINS = 4096;
+	protected static final int SPARSE_PIXELS = 1 << 18;
+
 	protected double PR = 0.299, PG = 0.587, PB = 0.114, PA = .3333;
 	protected double ratio = .5, weight = 1;
 	protected static final float[][] coeffs = new float[][] {
@@ -31,11 +53,58 @@ public class PnnQuantizer {
 	
 	protected Map<Integer, int[]> closestMap = new HashMap<>();
 	protected Map<Integer, Short> nearestMap = new HashMap<>();
+	protected Ditherer ditherer = Ditherer.GILBERT;
+	protected int preReduction = 0;
+	protected int blueNoisePhase = 0;
+
+	/* Fixed point metric: bin means carry FIXED_SHIFT fraction bits, channel weights WEIGHT_SHIFT */
+	private static final int FIXED_SHIFT = 4, WEIGHT_SHIFT = 12;
+	private static final double WEIGHT_UNIT = 1 << WEIGHT_SHIFT, DIST_UNIT = 1L << (2 * FIXED_SHIFT + WEIGHT_SHIFT);
+	protected boolean fixedPoint = false;
+	private long[] m_fixedWeights;
+	private Integer[] m_palette = new Integer[0];
+	/* Reference costs of a conversion with a time budget in nanoseconds: per pixel of the histogram, per pair of bins merged
+	 * and per pixel dithered by GILBERT, see getCostScales */
+	private static final double HISTOGRAM_NANOS = 100, MERGE_NANOS = 28, DITHER_NANOS = 3000;
+	private static final int BUDGET_SAMPLES = 1 << 16;
+	private static final int BUDGET_PRE_REDUCTION = 4;
+	private static final AtomicLongArray COST_SCALES = newCostScales(1, 1);
+	private Set<Degradation> m_degradations = EnumSet.noneOf(Degradation.class);
+
+	/* Rough heap bytes for the memory estimate: a histogram bin with its copy for the merge, a lookup entry with its boxed key and value.
+	 * Bounded lookups are emptied at BOUNDED_LOOKUPS entries, and tiles are a multiple of TILE_ROWS rows to line up with the blue noise mask. */
+	private static final int BIN_BYTES = 220, LOOKUP_BYTES = 80;
+	private static final int BOUNDED_LOOKUPS = 1 << 14, TILE_ROWS = 64;
+	private long m_memoryBudget = 0;
+	/* Chosen per conversion within the memory budget */
+	protected int lookupLimit = Integer.MAX_VALUE;
+	protected boolean compactSaliency = false;
+	private int m_tileRows = 0;
+	private boolean m_tiling = false;
+	private float m_tileStart = 0, m_tileShare = 1;
+
+	/* Shares of a conversion reported as progress once the histogram and once the merge are done, the dithering takes the rest.
+	 * Cancellation is checked with every report: every 2^16 pixels of a histogram, every 256 bins or merges and per dithering step. */
+	protected static final float HISTOGRAM_PROGRESS = .1f, MERGE_PROGRESS = .5f;
+	protected static final int HISTOGRAM_PROGRESS_MASK = (1 << 16) - 1, MERGE_PROGRESS_MASK = 0xFF;
+	private CancellationSignal m_cancellationSignal, m_taskCancellationSignal;
+	private final QuantizerScheduler.Serial m_asyncConversions = new QuantizerScheduler.Serial();
+	private ProgressListener m_progressListener;
+	private float m_progress;
+
+	/* Lookups are kept across images while they are mapped onto the same palette */
+	private Palette m_remapPalette;
+	private boolean m_remapAlpha, m_remapSemiTransparency;
+	private int m_remapTransparentColor;
 
 	public PnnQuantizer(String fname) {
 		fromBitmap(fname);
 	}
 
+	public PnnQuantizer(Bitmap bitmap) {
+		fromBitmap(bitmap);
+	}
+
 	private void fromBitmap(Bitmap bitmap) {
 		width = bitmap.getWidth();
 		height = bitmap.getHeight();
@@ -50,12 +119,114 @@ public class PnnQuantizer {
 
 	private static final class Pnnbin {
 		double ac = 0, rc = 0, gc = 0, bc = 0;
-		float cnt = 0, err = 0;
+		float cnt = 0, err = 0, pop = 0;
+		int fa, fr, fg, fb;
 		int nn, fw, bk, tm, mtm;
+
+		private Pnnbin() {
+		}
+
+		private Pnnbin(Pnnbin bin) {
+			ac = bin.ac; rc = bin.rc; gc = bin.gc; bc = bin.bc;
+			cnt = bin.cnt;
+		}
+	}
+
+	private static int toFixed(final double value)
+	{
+		return (int) Math.round(value * (1 << FIXED_SHIFT));
+	}
+
+	private void setFixedMeans(final Pnnbin bin)
+	{
+		bin.fa = toFixed(bin.ac);
+		bin.fr = toFixed(bin.rc);
+		bin.fg = toFixed(bin.gc);
+		bin.fb = toFixed(bin.bc);
+	}
+
+	/* Channel weights of find_nn folded into integers: alpha, RGB, then the YUV rows of coeffs */
+	private void setFixedWeights()
+	{
+		m_fixedWeights = new long[4 + 3 * coeffs.length];
+		m_fixedWeights[0] = Math.round(PA * WEIGHT_UNIT);
+		m_fixedWeights[1] = Math.round((1 - ratio) * PR * WEIGHT_UNIT);
+		m_fixedWeights[2] = Math.round((1 - ratio) * PG * WEIGHT_UNIT);
+		m_fixedWeights[3] = Math.round((1 - ratio) * PB * WEIGHT_UNIT);
+		for (int j = 0; j < coeffs.length; ++j) {
+			for (int k = 0; k < 3; ++k)
+				m_fixedWeights[4 + 3 * j + k] = Math.round(ratio * BitmapUtilities.sqr(coeffs[j][k]) * WEIGHT_UNIT);
+		}
+	}
+
+	/* Same search as find_nn with integer distances, each candidate turns err into a distance limit once */
+	private void find_nn_fixed(Pnnbin[] bins, int idx)
+	{
+		int nn = 0;
+		double err = 1e100;
+
+		Pnnbin bin1 = bins[idx];
+		float n1 = bin1.cnt;
+		final long[] w = m_fixedWeights;
+
+		int start = 0;
+		if(BlueNoise.TELL_BLUE_NOISE[idx & 4095] > 0)
+			start = (PG < coeffs[0][1]) ? coeffs.length : 1;
+
+		for (int i = bin1.fw; i != 0; i = bins[i].fw) {
+			double n2 = bins[i].cnt, nerr2 = (n1 * n2) / (n1 + n2);
+			if (nerr2 >= err)
+				continue;
+
+			final long limit = (long) (err / nerr2 * DIST_UNIT);
+			final int da = bins[i].fa - bin1.fa, dr = bins[i].fr - bin1.fr, dg = bins[i].fg - bin1.fg, db = bins[i].fb - bin1.fb;
+			long dist = 0;
+			if(hasSemiTransparency) {
+				dist += w[0] * da * da;
+				if (dist >= limit)
+					continue;
+			}
+
+			dist += w[1] * dr * dr;
+			if (dist >= limit)
+				continue;
+
+			dist += w[2] * dg * dg;
+			if (dist >= limit)
+				continue;
+
+			dist += w[3] * db * db;
+			if (dist >= limit)
+				continue;
+
+			for (int j = start; j < coeffs.length; ++j) {
+				dist += w[4 + 3 * j] * dr * dr;
+				if (dist >= limit)
+					break;
+
+				dist += w[5 + 3 * j] * dg * dg;
+				if (dist >= limit)
+					break;
+
+				dist += w[6 + 3 * j] * db * db;
+				if (dist >= limit)
+					break;
+			}
+
+			err = nerr2 * dist / DIST_UNIT;
+			nn = i;
+		}
+		bin1.err = (float) err;
+		bin1.nn = nn;
 	}
 
 	private void find_nn(Pnnbin[] bins, int idx)
 	{
+		if (fixedPoint) {
+			find_nn_fixed(bins, idx);
+			return;
+		}
+
 		int nn = 0;
 		double err = 1e100;
 
@@ -131,17 +302,32 @@ public class PnnQuantizer {
 		return cnt -> cnt;
 	}
 
-	protected Integer[] pnnquan(final int[] pixels, int nMaxColors)
+	protected boolean useExactBins(final int[] pixels)
 	{
-		short quan_rt = (short) 1;
-		Pnnbin[] bins = new Pnnbin[65536];
+		return pixels == this.pixels && getDistinctColors(EXACT_BINS) != null;
+	}
+
+	private Pnnbin[] buildHistogram(final int[] pixels, final boolean hasTransparency)
+	{
+		final boolean exact = useExactBins(pixels);
+		final ColorTable table = exact || pixels.length < SPARSE_PIXELS ? new ColorTable(1 << 12) : null;
+		Pnnbin[] bins = new Pnnbin[table != null ? 1 << 12 : 65536];
 
 		/* Build histogram */
-		for (int pixel : pixels) {
+		for (int i = 0; i < pixels.length; ++i) {
+			if ((i & HISTOGRAM_PROGRESS_MASK) == 0)
+				checkProgress(HISTOGRAM_PROGRESS * i / pixels.length);
+
+			int pixel = pixels[i];
 			if (Color.alpha(pixel) <= alphaThreshold)
 				pixel = m_transparentColor;
 			
-			int index = BitmapUtilities.getColorIndex(pixel, hasSemiTransparency, nMaxColors < 64 || m_transparentPixelIndex >= 0);
+			int index = exact ? pixel : BitmapUtilities.getColorIndex(pixel, hasSemiTransparency, hasTransparency);
+			if (table != null) {
+				index = table.add(index);
+				if (index == bins.length)
+					bins = Arrays.copyOf(bins, index << 1);
+			}
 
 			if(bins[index] == null)
 				bins[index] = new Pnnbin();
@@ -153,21 +339,144 @@ public class PnnQuantizer {
 			tb.cnt++;
 		}
 
-		/* Cluster nonempty bins at one end of array */
+		/* Cluster nonempty bins at one end of array, in the order of their keys */
+		final int[] order = table != null ? table.sortedIndices() : null;
+		final Pnnbin[] histogram = order != null ? new Pnnbin[order.length] : bins;
 		int maxbins = 0;
-
-		for (int i = 0; i < bins.length; ++i) {
-			if (bins[i] == null)
+		for (int i = 0; i < (order != null ? order.length : bins.length); ++i) {
+			Pnnbin tb = bins[order != null ? order[i] : i];
+			if (tb == null)
 				continue;
 
-			float d = 1f / bins[i].cnt;
-			bins[i].ac *= d;
-			bins[i].rc *= d;
-			bins[i].gc *= d;
-			bins[i].bc *= d;
+			float d = 1f / tb.cnt;
+			tb.ac *= d;
+			tb.rc *= d;
+			tb.gc *= d;
+			tb.bc *= d;
 			
-			bins[maxbins++] = bins[i];
+			histogram[maxbins++] = tb;
+		}
+
+		return maxbins == histogram.length ? histogram : Arrays.copyOf(histogram, maxbins);
+	}
+
+	/* Bins of the histogram of this image, which is kept for the merge */
+	private int getBinCount(final boolean hasTransparency)
+	{
+		final int key = hasTransparency ? 1 : 0;
+		if (histograms[key] == null)
+			histograms[key] = buildHistogram(pixels, hasTransparency);
+		return histograms[key].length;
+	}
+
+	private Pnnbin[] getHistogram(final int[] pixels, final boolean hasTransparency)
+	{
+		if (pixels != this.pixels)
+			return buildHistogram(pixels, hasTransparency);
+
+		final int key = hasTransparency ? 1 : 0;
+		getBinCount(hasTransparency);
+
+		/* The merge works on the bins in place */
+		Pnnbin[] bins = new Pnnbin[histograms[key].length];
+		for (int i = 0; i < bins.length; ++i)
+			bins[i] = new Pnnbin(histograms[key][i]);
+		return bins;
+	}
+
+	/* Cuts the bins down to preReduction * nMaxColors with a median cut before the exact merge */
+	private Pnnbin[] preReduce(final Pnnbin[] bins, final int nMaxColors)
+	{
+		final int boxes = preReduction * nMaxColors;
+		if (preReduction <= 0 || bins.length <= boxes)
+			return bins;
+
+		final float[][] coords = new float[hasSemiTransparency ? 4 : 3][bins.length];
+		final float[] weights = new float[bins.length];
+		for (int i = 0; i < bins.length; ++i) {
+			coords[0][i] = (float) bins[i].rc;
+			coords[1][i] = (float) bins[i].gc;
+			coords[2][i] = (float) bins[i].bc;
+			if (hasSemiTransparency)
+				coords[3][i] = (float) bins[i].ac;
+			weights[i] = bins[i].cnt;
+		}
+
+		final int[] boxOf = MedianCut.partition(coords, weights, boxes);
+		Pnnbin[] reduced = new Pnnbin[boxes];
+		int maxbins = 0;
+		for (int i = 0; i < bins.length; ++i) {
+			if (reduced[boxOf[i]] == null)
+				reduced[maxbins++] = new Pnnbin();
+			Pnnbin tb = reduced[boxOf[i]];
+			float n = bins[i].cnt;
+			tb.ac += n * bins[i].ac;
+			tb.rc += n * bins[i].rc;
+			tb.gc += n * bins[i].gc;
+			tb.bc += n * bins[i].bc;
+			tb.cnt += n;
+		}
+
+		for (int i = 0; i < maxbins; ++i) {
+			float d = 1f / reduced[i].cnt;
+			reduced[i].ac *= d;
+			reduced[i].rc *= d;
+			reduced[i].gc *= d;
+			reduced[i].bc *= d;
 		}
+		return Arrays.copyOf(reduced, maxbins);
+	}
+
+	protected Integer[] pnnquan(final int[] pixels, int nMaxColors)
+	{
+		return pnnquan(pixels, new int[] { nMaxColors }, 0)[0];
+	}
+
+	/* Squared error added to the image when two bins become one, counted over the real pixels */
+	private double mergeError(final Pnnbin tb, final Pnnbin nb)
+	{
+		double err = BitmapUtilities.sqr(tb.rc - nb.rc) + BitmapUtilities.sqr(tb.gc - nb.gc) + BitmapUtilities.sqr(tb.bc - nb.bc);
+		if (hasSemiTransparency)
+			err += BitmapUtilities.sqr(tb.ac - nb.ac);
+		return err * tb.pop * nb.pop / (tb.pop + nb.pop);
+	}
+
+	/* Runs the merge once down to the last of targets, which are in descending order,
+	 * and takes a palette from the live bins whenever one of the sizes is reached.
+	 * A positive maxError stops the merge below the first target as soon as the next merge would take
+	 * the root mean square error over the pixels past it, the remaining targets then get the palette at that point. */
+	protected Integer[][] pnnquan(final int[] pixels, final int[] targets, final double maxError)
+	{
+		Pnnbin[] bins = getHistogram(pixels, targets[0] < 64 || m_transparentPixelIndex >= 0);
+		return pnnquan(bins, pixels.length, targets, maxError);
+	}
+
+	/* Bins of a histogram merged from several images */
+	private static Pnnbin[] toBins(final Histogram histogram)
+	{
+		final double[][] means = histogram.bins();
+		Pnnbin[] bins = new Pnnbin[means.length];
+		for (int i = 0; i < bins.length; ++i) {
+			Pnnbin tb = bins[i] = new Pnnbin();
+			tb.ac = means[i][0];
+			tb.rc = means[i][1];
+			tb.gc = means[i][2];
+			tb.bc = means[i][3];
+			tb.cnt = (float) means[i][4];
+		}
+		return bins;
+	}
+
+	protected Integer[][] pnnquan(final Histogram histogram, final int[] targets)
+	{
+		return pnnquan(toBins(histogram), histogram.pixelCount(), targets, 0);
+	}
+
+	private Integer[][] pnnquan(Pnnbin[] bins, final long pixelCount, final int[] targets, final double maxError)
+	{
+		final int nMaxColors = targets[0];
+		short quan_rt = (short) 1;
+		int maxbins = m_binCount = bins.length;
 
 		if(nMaxColors < 16)
 			quan_rt = -1;
@@ -180,64 +489,68 @@ public class PnnQuantizer {
 		}
 		
 		QuanFn quanFn = getQuanFn(nMaxColors, quan_rt);
+		bins = preReduce(bins, nMaxColors);
+		maxbins = bins.length;
 
 		int j = 0;
 		for (; j < maxbins - 1; ++j) {
 			bins[j].fw = j + 1;
 			bins[j + 1].bk = j;
+
+			bins[j].pop = bins[j].cnt;
 			
 			bins[j].cnt = quanFn.get(bins[j].cnt);
 		}
+		bins[j].pop = bins[j].cnt;
 		bins[j].cnt = quanFn.get(bins[j].cnt);
 
-		int h, l, l2;
+		if (fixedPoint) {
+			setFixedWeights();
+			for (j = 0; j < maxbins; ++j)
+				setFixedMeans(bins[j]);
+		}
+
 		/* Initialize nearest neighbors and build heap of them */
-		int[] heap = new int[bins.length + 1];
-		for (int i = 0; i < maxbins; i++) {
+		IndexedHeap heap = new IndexedHeap(maxbins);
+		for (int i = 0; i < maxbins; ++i) {
+			if ((i & MERGE_PROGRESS_MASK) == 0)
+				checkProgress(HISTOGRAM_PROGRESS + (MERGE_PROGRESS - HISTOGRAM_PROGRESS) / 2 * i / maxbins);
 			find_nn(bins, i);
-			/* Push slot on heap */
-			float err = bins[i].err;
-			for (l = ++heap[0]; l > 1; l = l2) {
-				l2 = l >> 1;
-				if (bins[h = heap[l2]].err <= err)
-					break;
-				heap[l] = h;
-			}
-			heap[l] = i;
+			heap.add(i, bins[i].err);
 		}
 
 		/* Merge bins which increase error the least */
-		int extbins = maxbins - nMaxColors;
-		for (int i = 0; i < extbins; ) {
-			Pnnbin tb;
-			/* Use heap to find which bins to merge */
-			for (;;) {
-				int b1 = heap[1];
-				tb = bins[b1]; /* One with least error */
-											   /* Is stored error up to date? */
-				if ((tb.tm >= tb.mtm) && (bins[tb.nn].mtm <= tb.tm))
-					break;
-				if (tb.mtm == 0xFFFF) /* Deleted node */
-					b1 = heap[1] = heap[heap[0]--];
-				else /* Too old error value */
-				{
-					find_nn(bins, b1);
-					tb.tm = i;
-				}
-				/* Push slot down */
-				float err = bins[b1].err;
-				for (l = 1; (l2 = l + l) <= heap[0]; l = l2) {
-					if ((l2 < heap[0]) && (bins[heap[l2]].err > bins[heap[l2 + 1]].err))
-						++l2;
-					if (err <= bins[h = heap[l2]].err)
-						break;
-					heap[l] = h;
-				}
-				heap[l] = b1;
+		Integer[][] palettes = new Integer[targets.length][];
+		int t = 0;
+		for (; t < targets.length && maxbins <= targets[t]; ++t)
+			palettes[t] = fillPalette(bins, maxbins);
+
+		double sse = 0, budget = maxError * maxError * pixelCount;
+		int extbins = maxbins - targets[targets.length - 1];
+		int i = 0;
+		while (i < extbins) {
+			if ((i & MERGE_PROGRESS_MASK) == 0)
+				checkProgress(HISTOGRAM_PROGRESS + (MERGE_PROGRESS - HISTOGRAM_PROGRESS) / 2 * (1f + (float) i / extbins));
+
+			/* Use heap to find which bins to merge, a stored error is out of date once its neighbor has been merged */
+			int b1 = heap.peek();
+			Pnnbin tb = bins[b1]; /* One with least error */
+			while (bins[tb.nn].mtm > tb.tm) {
+				find_nn(bins, b1);
+				tb.tm = i;
+				heap.update(b1, tb.err);
+				tb = bins[b1 = heap.peek()];
 			}
 
 			/* Do a merge */
-			Pnnbin nb = bins[tb.nn];
+			final int b2 = tb.nn;
+			Pnnbin nb = bins[b2];
+			if (maxError > 0) {
+				sse += mergeError(tb, nb);
+				if (t > 0 && sse > budget)
+					break;
+			}
+
 			float n1 = tb.cnt;
 			float n2 = nb.cnt;
 			float d = 1f / (n1 + n2);
@@ -245,17 +558,38 @@ public class PnnQuantizer {
 			tb.rc = d * Math.round(n1 * tb.rc + n2 * nb.rc);
 			tb.gc = d * Math.round(n1 * tb.gc + n2 * nb.gc);
 			tb.bc = d * Math.round(n1 * tb.bc + n2 * nb.bc);
+			if (fixedPoint)
+				setFixedMeans(tb);
 			tb.cnt += n2;
+			tb.pop += nb.pop;
 			tb.mtm = ++i;
 
 			/* Unchain deleted bin */
 			bins[nb.bk].fw = nb.fw;
 			bins[nb.fw].bk = nb.bk;
 			nb.mtm = 0xFFFF;
+			heap.remove(b2);
+
+			/* The merged bin gets its new neighbor right away */
+			if (i < extbins) {
+				find_nn(bins, b1);
+				tb.tm = i;
+				heap.update(b1, tb.err);
+			}
+
+			for (; t < targets.length && maxbins - i <= targets[t]; ++t)
+				palettes[t] = fillPalette(bins, maxbins - i);
 		}
 
+		for (; t < targets.length; ++t)
+			palettes[t] = fillPalette(bins, maxbins - i);
+		return palettes;
+	}
+
+	private static Integer[] fillPalette(final Pnnbin[] bins, final int size)
+	{
 		/* Fill palette */
-		Integer[] palette = new Integer[extbins > 0 ? nMaxColors : maxbins];
+		Integer[] palette = new Integer[size];
 		short k = 0;
 		for (int i = 0; k < palette.length; ++k) {
 			palette[k] = Color.argb((int) bins[i].ac, (int) bins[i].rc, (int) bins[i].gc, (int) bins[i].bc);
@@ -268,7 +602,7 @@ public class PnnQuantizer {
 
 	protected short nearestColorIndex(final Integer[] palette, int c, final int pos)
 	{
-		final int offset = weight > .015 ? c : BitmapUtilities.getColorIndex(c, hasSemiTransparency, m_transparentPixelIndex >= 0);
+		final int offset = getDitherWeight() > .015 ? c : BitmapUtilities.getColorIndex(c, hasSemiTransparency, m_transparentPixelIndex >= 0);
 		Short got = nearestMap.get(offset);
 		if (got != null)
 			return got;
@@ -283,6 +617,12 @@ public class PnnQuantizer {
 		if(palette.length < 3)
 			pr = pg = pb = pa = 1;
 
+		if (fixedPoint) {
+			k = nearestColorIndexFixed(palette, c, k, pr, pg, pb, pa);
+			putLookup(nearestMap, offset, k);
+			return k;
+		}
+
 		double mindist = Integer.MAX_VALUE;
 		for (short i=k; i<palette.length; ++i) {
 			int c2 = palette[i];
@@ -306,7 +646,40 @@ public class PnnQuantizer {
 			mindist = curdist;
 			k = i;
 		}
-		nearestMap.put(offset, k);
+		putLookup(nearestMap, offset, k);
+		return k;
+	}
+
+	private static short nearestColorIndexFixed(final Integer[] palette, final int c, short k, final double pr, final double pg, final double pb, final double pa)
+	{
+		final long wr = Math.round(pr * WEIGHT_UNIT), wg = Math.round(pg * WEIGHT_UNIT), wb = Math.round(pb * WEIGHT_UNIT), wa = Math.round(pa * WEIGHT_UNIT);
+		long mindist = Long.MAX_VALUE;
+		for (short i = k; i < palette.length; ++i) {
+			int c2 = palette[i];
+
+			int d = Color.alpha(c2) - Color.alpha(c);
+			long curdist = wa * d * d;
+			if (curdist > mindist)
+				continue;
+
+			d = Color.red(c2) - Color.red(c);
+			curdist += wr * d * d;
+			if (curdist > mindist)
+				continue;
+
+			d = Color.green(c2) - Color.green(c);
+			curdist += wg * d * d;
+			if (curdist > mindist)
+				continue;
+
+			d = Color.blue(c2) - Color.blue(c);
+			curdist += wb * d * d;
+			if (curdist > mindist)
+				continue;
+
+			mindist = curdist;
+			k = i;
+		}
 		return k;
 	}
 
@@ -316,7 +689,7 @@ public class PnnQuantizer {
 		if (Color.alpha(c) <= alphaThreshold)
 			return nearestColorIndex(palette, c, pos);
 
-		final int offset = weight > .015 ? c : BitmapUtilities.getColorIndex(c, hasSemiTransparency, m_transparentPixelIndex >= 0);
+		final int offset = getDitherWeight() > .015 ? c : BitmapUtilities.getColorIndex(c, hasSemiTransparency, m_transparentPixelIndex >= 0);
 		int[] closest = closestMap.get(c);
 		if (closest == null) {
 			closest = new int[4];
@@ -359,7 +732,7 @@ public class PnnQuantizer {
 			if (closest[3] == Integer.MAX_VALUE)
 				closest[1] = closest[0];
 
-			closestMap.put(offset, closest);
+			putLookup(closestMap, offset, closest);
 		}
 
 		int MAX_ERR = palette.length << 2;
@@ -387,57 +760,234 @@ public class PnnQuantizer {
 					return PnnQuantizer.this.nearestColorIndex(palette, c, pos);
 				return PnnQuantizer.this.closestColorIndex(palette, c, pos);
 			}
+
+			@Override
+			public int getBlueNoisePhase() {
+				return blueNoisePhase;
+			}
+
+			@Override
+			public void checkProgress(final float progress) {
+				checkDitherProgress(progress);
+			}
 		};
 	}
 
+	/* The weight handed to the ditherer, negative when it has to take alpha into account. weight itself stays positive,
+	 * so dithering again with the same metric, as ditherRect does, sees the same alpha mode. */
+	protected double getDitherWeight() {
+		return hasSemiTransparency ? -weight : weight;
+	}
+
 	protected int[] dither(final int[] cPixels, Integer[] palette, int width, int height, boolean dither) throws Exception
 	{
 		Ditherable ditherable = getDitherFn(dither);
-		if(hasSemiTransparency)
-			weight *= -1;
-		int[] qPixels = GilbertCurve.dither(width, height, cPixels, palette, ditherable, null, weight, dither);
+		try {
+			int[] qPixels = ditherer.dither(width, height, cPixels, palette, ditherable, null, getDitherWeight(), dither);
+			checkDitherProgress(1);
+			return qPixels;
+		}
+		finally {
+			/* Also when the conversion was canceled, so the lookups do not outlive it */
+			if (!keepsLookups())
+				clearLookups();
+		}
+	}
 
-		if (!dither && palette.length > 32)
-			BlueNoise.dither(width, height, cPixels, palette, ditherable, qPixels, 1.0f);
+	/* With a positive multiple, images with many colors are first cut down to multiple * nMaxColors bins by a median cut,
+	 * and only those go through the pairwise merge. 0 merges every bin. */
+	public void setPreReduction(int multiple) {
+		preReduction = multiple;
+	}
 
-		closestMap.clear();
-		nearestMap.clear();
+	/* Integer distances in find_nn and nearestColorIndex, for cores where they are cheaper than doubles.
+	 * Only the distance is integer: bin sums, counts and means stay doubles, and a copy of each mean rounded to 1/16
+	 * is taken for the search, with channel weights rounded to 1/4096 of a unit. A different neighbor or palette entry
+	 * is only chosen where two candidates are within that rounding of each other. PnnLABQuantizer ignores the flag. */
+	public void setFixedPoint(boolean fixedPoint) {
+		this.fixedPoint = fixedPoint;
+	}
 
-		return qPixels;
+	/* A canceled signal stops the conversion in progress with OperationCanceledException, within a few milliseconds */
+	public void setCancellationSignal(CancellationSignal cancellationSignal) {
+		m_cancellationSignal = cancellationSignal;
 	}
 
-	public Bitmap convert(int nMaxColors, boolean dither) throws Exception {
+	/* The signal of the scheduler task running an async conversion, checked along with the caller's own */
+	void setTaskCancellationSignal(CancellationSignal cancellationSignal) {
+		m_taskCancellationSignal = cancellationSignal;
+	}
+
+	public void setProgressListener(ProgressListener progressListener) {
+		m_progressListener = progressListener;
+	}
+
+	/* Progress from 0 to 1 of dithering the image, or the tile being dithered */
+	protected void checkDitherProgress(final float progress) {
+		checkProgress(MERGE_PROGRESS + (1 - MERGE_PROGRESS) * (m_tileStart + m_tileShare * progress));
+	}
+
+	/* Gives up when the conversion was canceled, and reports progress when it has moved on */
+	protected void checkProgress(final float progress) {
+		if (m_cancellationSignal != null)
+			m_cancellationSignal.throwIfCanceled();
+		if (m_taskCancellationSignal != null)
+			m_taskCancellationSignal.throwIfCanceled();
+		if (m_progressListener != null && progress > m_progress)
+			m_progressListener.onProgress(m_progress = progress);
+	}
+
+	/* Moves the blue noise mask, frames of an animation use consecutive phases */
+	public void setBlueNoisePhase(int phase) {
+		blueNoisePhase = phase;
+	}
+
+	/* Dithers this conversion only with the given ditherer, later conversions keep the quantizer's own */
+	public Bitmap convert(int nMaxColors, boolean dither, Ditherer ditherer) throws Exception {
+		final Ditherer lastDitherer = this.ditherer;
+		this.ditherer = ditherer;
+		try {
+			return convert(nMaxColors, dither);
+		}
+		finally {
+			this.ditherer = lastDitherer;
+		}
+	}
+
+	private void analyze() {
+		if (analyzed)
+			return;
+
 		int semiTransCount = 0;
 		for (int i = 0; i < pixels.length; ++i) {
-			int pixel = pixels[i];
-			int alfa = (pixel >> 24) & 0xff;
-			int r   = (pixel >> 16) & 0xff;
-			int g = (pixel >>  8) & 0xff;
-			int b  = (pixel      ) & 0xff;
-			pixels[i] = Color.argb(alfa, r, g, b);
+			int alfa = Color.alpha(pixels[i]);
 			if (alfa < 0xE0) {
 				if (alfa == 0) {
 					m_transparentPixelIndex = i;
-					if(nMaxColors > 2)
-						m_transparentColor = pixels[i];
-					else
-						pixels[i] = m_transparentColor;
+					m_transparentPixel = pixels[i];
 				}
 				else if (alfa > alphaThreshold)
 					++semiTransCount;
 			}
 		}
-		
+
 		hasSemiTransparency = semiTransCount > 0;
+		analyzed = true;
+	}
+
+	/* Undoes whatever the previous conversion left in the metric */
+	protected void reset(int nMaxColors) {
+		m_progress = 0;
+		m_degradations = EnumSet.noneOf(Degradation.class);
+		lookupLimit = Integer.MAX_VALUE;
+		compactSaliency = false;
+		m_tileRows = 0;
+		m_transparentColor = (nMaxColors > 2 && hasAlpha()) ? m_transparentPixel : Color.argb(0, BYTE_MAX, BYTE_MAX, BYTE_MAX);
+		PA = .3333;
+		ratio = .5;
+		weight = 1;
 		if (nMaxColors <= 32)
 			PR = PG = PB = PA = 1;
 		else {
 			PR = coeffs[0][0]; PG = coeffs[0][1]; PB = coeffs[0][2];
 		}
+	}
+
+	/* Sizes in the same band get the same channel weights, histogram and quan_rt from reset and pnnquan,
+	 * so a ladder can take all of them from one merge. The weight below .04 that drops the channel weights
+	 * depends on the number of bins, so it splits the bands too. */
+	protected int getTuningBand(int nMaxColors) {
+		final int band = nMaxColors >= 64 ? 0 : nMaxColors > 32 ? 1 : nMaxColors >= 16 ? 2 : 3;
+		final int maxbins = getBinCount(nMaxColors < 64 || m_transparentPixelIndex >= 0);
+		return 2 * band + (nMaxColors * 1.0 / maxbins < .04 ? 1 : 0);
+	}
+
+	/* Dither state for a smaller palette taken from the same merge */
+	protected void setPaletteSize(int nMaxColors) {
+		weight = Math.min(0.9, nMaxColors * 1.0 / m_binCount);
+	}
+
+	/* The colors of the image when there are at most limit of them, otherwise null.
+	 * Counting stops as soon as the limit is passed, and the outcome is remembered for later calls. */
+	private int[] getDistinctColors(int limit) {
+		if (limit <= m_tooManyColors)
+			return null;
+
+		if (m_distinctColors == null) {
+			ColorTable table = new ColorTable(Math.min(limit, pixels.length) + 1);
+			for (int pixel : pixels) {
+				if (Color.alpha(pixel) <= alphaThreshold)
+					pixel = m_transparentColor;
+				if (table.add(pixel) >= limit) {
+					m_tooManyColors = limit;
+					return null;
+				}
+			}
+			m_distinctColors = table.colors();
+		}
+		return m_distinctColors.length > limit ? null : m_distinctColors;
+	}
+
+	private Integer[] getExactPalette(int nMaxColors) {
+		if (getDistinctColors(nMaxColors) == null)
+			return null;
+
+		Integer[] palette = new Integer[m_distinctColors.length];
+		for (int k = 0; k < palette.length; ++k) {
+			palette[k] = m_distinctColors[k];
+			if (k > 0 && Color.alpha(palette[k]) == 0) {
+				palette[k] = palette[0]; palette[0] = m_distinctColors[k];
+			}
+		}
+		return palette;
+	}
+
+	/* Every color is in the palette, so the pixels are mapped straight to their own entry */
+	private Bitmap remapExact(Integer[] palette) {
+		int[] qPixels = new int[pixels.length];
+		for (int i = 0; i < qPixels.length; ++i)
+			qPixels[i] = Color.alpha(pixels[i]) <= alphaThreshold ? m_transparentColor : pixels[i];
+
+		m_palette = palette;
+		return Bitmap.createBitmap(qPixels, width, height, Bitmap.Config.ARGB_8888);
+	}
+
+	public Bitmap convert(int nMaxColors, boolean dither) throws Exception {
+		return quantize(nMaxColors, 0, dither);
+	}
+
+	/* Shared by the conversions to a palette size and to an error bound: a positive maxError stops the merge
+	 * at the smallest palette within it, see convert(double, int, boolean) */
+	private Bitmap quantize(int nMaxColors, double maxError, boolean dither) throws Exception {
+		releasePalette();
+		analyze();
+		reset(nMaxColors);
+
+		if (nMaxColors > 2) {
+			Integer[] palette = getExactPalette(nMaxColors);
+			if (palette != null)
+				return remapExact(palette);
+		}
+
+		int[] cPixels = pixels;
+		if (nMaxColors <= 2 && hasAlpha()) {
+			cPixels = pixels.clone();
+			for (int i = 0; i < cPixels.length; ++i) {
+				if (Color.alpha(cPixels[i]) == 0)
+					cPixels[i] = m_transparentColor;
+			}
+		}
 
 		Integer[] palette;
-		if (nMaxColors > 2)
+		if (nMaxColors > 2 && maxError > 0) {
+			planMemory(nMaxColors, dither);
+			palette = pnnquan(pixels, new int[] { nMaxColors, 2 }, maxError)[1];
+			setPaletteSize(palette.length);
+		}
+		else if (nMaxColors > 2) {
+			planMemory(nMaxColors, dither);
 			palette = pnnquan(pixels, nMaxColors);
+		}
 		else {
 			palette = new Integer[nMaxColors];
 			weight = 1;
@@ -451,10 +1001,512 @@ public class PnnQuantizer {
 			}
 		}		
 
-		int[] qPixels = dither(pixels, palette, width, height, dither);
+		m_palette = palette;
+		if (m_tileRows > 0)
+			return ditherTiles(dither);
+		int[] qPixels = dither(cPixels, palette, width, height, dither);
 		return Bitmap.createBitmap(qPixels, width, height, Bitmap.Config.ARGB_8888);
 	}
 	
+	/* Sizes above 2 colors that share a tuning band, see getTuningBand, come from a single merge,
+	 * so every palette is the one convert would make for its size. The bitmaps are returned in the order of nMaxColors. */
+	public Bitmap[] convert(int[] nMaxColors, boolean dither) throws Exception {
+		releasePalette();
+		Integer[] order = new Integer[nMaxColors.length];
+		for (int i = 0; i < order.length; ++i)
+			order[i] = i;
+		Arrays.sort(order, (a, b) -> Integer.compare(nMaxColors[b], nMaxColors[a]));
+
+		int merged = 0;
+		while (merged < order.length && nMaxColors[order[merged]] > 2)
+			++merged;
+
+		Bitmap[] results = new Bitmap[nMaxColors.length];
+		analyze();
+		int exact = 0;
+		for (; exact < merged; ++exact) {
+			reset(nMaxColors[order[exact]]);
+			Integer[] palette = getExactPalette(nMaxColors[order[exact]]);
+			if (palette == null)
+				break;
+			results[order[exact]] = remapExact(palette);
+		}
+
+		/* One merge per tuning band, tuned for the largest size in it */
+		for (int start = exact; start < merged; ) {
+			int end = start + 1;
+			while (end < merged && getTuningBand(nMaxColors[order[end]]) == getTuningBand(nMaxColors[order[start]]))
+				++end;
+
+			int[] targets = new int[end - start];
+			for (int k = 0; k < targets.length; ++k)
+				targets[k] = nMaxColors[order[start + k]];
+
+			reset(targets[0]);
+			Integer[][] palettes = pnnquan(pixels, targets, 0);
+			for (int k = 0; k < targets.length; ++k) {
+				setPaletteSize(targets[k]);
+				m_palette = palettes[k];
+				int[] qPixels = dither(pixels, palettes[k], width, height, dither);
+				results[order[start + k]] = Bitmap.createBitmap(qPixels, width, height, Bitmap.Config.ARGB_8888);
+			}
+			start = end;
+		}
+
+		for (int k = merged; k < order.length; ++k)
+			results[order[k]] = convert(nMaxColors[order[k]], dither);
+		return results;
+	}
+
+	/* Picks the smallest palette of at most maxColors whose merge error stays within maxError,
+	 * the root mean square distance per pixel in RGB units, or in CIELAB delta E for PnnLABQuantizer.
+	 * The size is found during the one merge run and can be read from getPaletteSize afterwards.
+	 * An image of at most maxColors colors keeps them all, as with convert(int, boolean), and so does the memory budget. */
+	public Bitmap convert(double maxError, int maxColors, boolean dither) throws Exception {
+		return quantize(maxColors, Math.max(0, maxError), dither);
+	}
+
+	/* Cost scales are kept as the bits of their doubles, so quantizers converting on several threads can learn them without a lock */
+	protected static AtomicLongArray newCostScales(final double... scales) {
+		AtomicLongArray costScales = new AtomicLongArray(scales.length);
+		for (int i = 0; i < scales.length; ++i)
+			costScales.set(i, Double.doubleToLongBits(scales[i]));
+		return costScales;
+	}
+
+	/* Actual over estimated time of making the palette and of dithering, shared by the quantizers of a class
+	 * and learnt from their conversions with a time budget */
+	protected AtomicLongArray getSharedCostScales() {
+		return COST_SCALES;
+	}
+
+	/* A snapshot of the cost scales, see getSharedCostScales */
+	protected double[] getCostScales() {
+		final AtomicLongArray costScales = getSharedCostScales();
+		double[] scales = new double[costScales.length()];
+		for (int i = 0; i < scales.length; ++i)
+			scales[i] = Double.longBitsToDouble(costScales.get(i));
+		return scales;
+	}
+
+	private void learnCostScale(final int phase, final double estimate, final long nanos)
+	{
+		if (estimate <= 0 || nanos <= 0)
+			return;
+
+		/* Halfway to the measured scale in log space, so a single slow run does not throw it off */
+		final double ratio = Math.sqrt(nanos / estimate);
+		final AtomicLongArray costScales = getSharedCostScales();
+		long bits;
+		do {
+			bits = costScales.get(phase);
+		} while (!costScales.compareAndSet(phase, bits, Double.doubleToLongBits(Double.longBitsToDouble(bits) * ratio)));
+	}
+
+	protected boolean hasFixedPoint() {
+		return true;
+	}
+
+	/* Keeps the conversion within budgetMillis by falling back on cheaper strategies where the estimate asks for it.
+	 * The estimate comes from the pixel count and the number of histogram bins in a sample, corrected by getCostScales,
+	 * and the dithering is chosen again from the time that is actually left. See getDegradations for what was given up. */
+	public Bitmap convert(int nMaxColors, boolean dither, long budgetMillis) throws Exception {
+		final long start = System.nanoTime();
+		if (nMaxColors <= 2)
+			return convert(nMaxColors, dither);
+
+		releasePalette();
+		analyze();
+		reset(nMaxColors);
+		Integer[] palette = getExactPalette(nMaxColors);
+		if (palette != null)
+			return remapExact(palette);
+
+		planMemory(nMaxColors, dither);
+		final int bins = (int) sampleColors(nMaxColors)[0];
+		final double[] scales = getCostScales();
+		final double budget = budgetMillis * 1e6;
+		double histogramNanos = scales[0] * HISTOGRAM_NANOS * pixels.length;
+		double mergeNanos = scales[0] * MERGE_NANOS * bins * bins;
+		final double ditherNanos = scales[1] * DITHER_NANOS * pixels.length;
+
+		int[] cPixels = pixels;
+		if (histogramNanos > budget / 4) {
+			final int step = (int) Math.ceil(histogramNanos / (budget / 4));
+			cPixels = new int[(pixels.length + step - 1) / step];
+			for (int i = 0; i < cPixels.length; ++i)
+				cPixels[i] = pixels[i * step];
+			histogramNanos /= step;
+			m_degradations.add(Degradation.SUBSAMPLED_HISTOGRAM);
+		}
+
+		final int lastPreReduction = preReduction;
+		final boolean lastFixedPoint = fixedPoint;
+		final Ditherer lastDitherer = ditherer;
+		try {
+			final double planned = System.nanoTime() - start + histogramNanos + ditherNanos * ditherer.getCost();
+			if (planned + mergeNanos > budget && preReduction <= 0 && bins > BUDGET_PRE_REDUCTION * nMaxColors) {
+				preReduction = BUDGET_PRE_REDUCTION;
+				mergeNanos = scales[0] * MERGE_NANOS * BitmapUtilities.sqr(BUDGET_PRE_REDUCTION * nMaxColors);
+				m_degradations.add(Degradation.COARSE_MERGE);
+			}
+			if (planned + mergeNanos > budget && hasFixedPoint() && !fixedPoint) {
+				fixedPoint = true;
+				m_degradations.add(Degradation.FIXED_POINT_METRIC);
+			}
+			long phaseStart = System.nanoTime();
+			palette = pnnquan(cPixels, nMaxColors);
+			learnCostScale(0, histogramNanos + mergeNanos, System.nanoTime() - phaseStart);
+
+			final double remaining = budget - (System.nanoTime() - start);
+			if (ditherNanos * ditherer.getCost() > remaining) {
+				final Ditherer cheaper = Ditherer.select((float) (remaining / ditherNanos));
+				if (cheaper != ditherer) {
+					ditherer = cheaper;
+					m_degradations.add(Degradation.CHEAPER_DITHER);
+				}
+			}
+
+			m_palette = palette;
+			phaseStart = System.nanoTime();
+			Bitmap result = m_tileRows > 0 ? ditherTiles(dither) : Bitmap.createBitmap(dither(pixels, palette, width, height, dither), width, height, Bitmap.Config.ARGB_8888);
+			learnCostScale(1, ditherNanos * ditherer.getCost(), System.nanoTime() - phaseStart);
+			return result;
+		}
+		finally {
+			preReduction = lastPreReduction;
+			fixedPoint = lastFixedPoint;
+			ditherer = lastDitherer;
+		}
+	}
+
+	/* What the last conversion gave up to keep within its time or memory budget */
+	public Set<Degradation> getDegradations() {
+		return Collections.unmodifiableSet(m_degradations);
+	}
+
+	/* Number of histogram bins and of distinct colors in a sample of about BUDGET_SAMPLES pixels, then the distinct colors
+	 * of the whole image estimated from it: colors seen once in the sample are taken to keep turning up at that rate */
+	private long[] sampleColors(int nMaxColors) {
+		final boolean hasTransparency = nMaxColors < 64 || hasAlpha();
+		final boolean[] seen = new boolean[65536];
+		final ColorTable colors = new ColorTable(BUDGET_SAMPLES);
+		final int step = Math.max(1, pixels.length / BUDGET_SAMPLES);
+		int bins = 0, samples = 0;
+		for (int i = 0; i < pixels.length; i += step, ++samples) {
+			final int index = BitmapUtilities.getColorIndex(pixels[i], hasSemiTransparency, hasTransparency);
+			if (!seen[index]) {
+				seen[index] = true;
+				++bins;
+			}
+			colors.add(pixels[i]);
+		}
+
+		int once = 0;
+		for (int k = 0; k < colors.size(); ++k) {
+			if (colors.count(k) == 1)
+				++once;
+		}
+		final long distinct = colors.size() + (long) once * (pixels.length - samples) / samples;
+		return new long[] { bins, Math.min(distinct, pixels.length) };
+	}
+
+	/* Bytes per pixel of the saliency map the dithering uses, 0 without one */
+	protected int getSaliencyBytes(int nMaxColors, boolean dither) {
+		return 0;
+	}
+
+	/* Peak heap bytes of a conversion that dithers rows rows at a time, counting the decoded image and the output bitmap,
+	 * from the number of distinct colors and histogram bins. PnnLABQuantizer adds what it keeps per color. */
+	protected long estimateBytes(int nMaxColors, boolean dither, long colors, int bins, int rows) {
+		final long n = pixels.length, tile = (long) width * Math.min(rows, height);
+		long bytes = 4 * n + (long) bins * BIN_BYTES;
+		if (n >= SPARSE_PIXELS)
+			bytes += 4 * 65536;
+
+		/* The lookups are keyed by color, or by bin for a fine palette, see nearestColorIndex */
+		final long keys = Math.min(Math.min(.9, nMaxColors * 1.0 / Math.max(1, bins)) > .015 ? colors : bins, lookupLimit);
+		long ditherBytes = keys * LOOKUP_BYTES * (dither ? 1 : 2);
+		final int saliencyBytes = getSaliencyBytes(nMaxColors, dither);
+		bytes += saliencyBytes * n;
+		if (ditherer == Ditherer.GILBERT) {
+			if (tile >= GilbertCurve.CURVE_ORDER_THRESHOLD)
+				ditherBytes += (4 + saliencyBytes) * tile;
+			/* Luminance plane of floats */
+			if (saliencyBytes > 0 || nMaxColors > 128)
+				ditherBytes += 4 * tile;
+			if (!dither && nMaxColors > 32)
+				ditherBytes += 4 * tile;
+		}
+
+		/* A tile is copied out and its result written into the output bitmap, which exists from the start.
+		 * Otherwise the whole result is copied into the output bitmap once the dithering is done. */
+		if (rows < height)
+			return bytes + 4 * n + (8 + saliencyBytes) * tile + ditherBytes;
+		return bytes + 4 * n + Math.max(ditherBytes, 4 * n);
+	}
+
+	/* Predicted peak heap bytes of convert(nMaxColors, dither) on this image with the current ditherer and no memory budget,
+	 * counting the decoded image and the output bitmap. Colors are counted in a sample, so it is good to tens of percent. */
+	public long estimatePeakBytes(int nMaxColors, boolean dither) {
+		analyze();
+		final long[] sample = sampleColors(nMaxColors);
+		final int lastLookupLimit = lookupLimit;
+		final boolean lastCompactSaliency = compactSaliency;
+		lookupLimit = Integer.MAX_VALUE;
+		compactSaliency = false;
+		try {
+			return estimateBytes(nMaxColors, dither, sample[1], (int) sample[0], height);
+		}
+		finally {
+			lookupLimit = lastLookupLimit;
+			compactSaliency = lastCompactSaliency;
+		}
+	}
+
+	/* convert then falls back on bounded lookups, a compact saliency map and dithering in tiles, in that order,
+	 * while the estimate of its peak heap bytes is above maxBytes. 0 takes no budget. See getDegradations. */
+	public void setMemoryBudget(long maxBytes) {
+		m_memoryBudget = maxBytes;
+	}
+
+	private void planMemory(final int nMaxColors, final boolean dither) {
+		if (m_memoryBudget <= 0)
+			return;
+
+		final long[] sample = sampleColors(nMaxColors);
+		final long colors = sample[1];
+		final int bins = (int) sample[0];
+		if (estimateBytes(nMaxColors, dither, colors, bins, height) <= m_memoryBudget)
+			return;
+
+		lookupLimit = BOUNDED_LOOKUPS;
+		m_degradations.add(Degradation.BOUNDED_CACHES);
+		if (estimateBytes(nMaxColors, dither, colors, bins, height) <= m_memoryBudget)
+			return;
+
+		final int saliencyBytes = getSaliencyBytes(nMaxColors, dither);
+		compactSaliency = true;
+		if (getSaliencyBytes(nMaxColors, dither) < saliencyBytes) {
+			m_degradations.add(Degradation.COMPACT_SALIENCY);
+			if (estimateBytes(nMaxColors, dither, colors, bins, height) <= m_memoryBudget)
+				return;
+		}
+
+		int rows = height;
+		while (rows > TILE_ROWS && estimateBytes(nMaxColors, dither, colors, bins, rows) > m_memoryBudget)
+			rows = Math.max(TILE_ROWS, (rows / 2 + TILE_ROWS - 1) / TILE_ROWS * TILE_ROWS);
+		if (rows < height) {
+			m_tileRows = rows;
+			m_degradations.add(Degradation.TILED_DITHER);
+		}
+	}
+
+	/* Dithers the image m_tileRows rows at a time straight into the output bitmap, so the quantized pixels of only one tile are held.
+	 * Every tile starts the error diffusion afresh, which can show as a faint seam between tiles. */
+	private Bitmap ditherTiles(final boolean dither) throws Exception {
+		Bitmap result = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		m_tiling = true;
+		try {
+			for (int top = 0; top < height; top += m_tileRows) {
+				final int h = Math.min(m_tileRows, height - top);
+				m_tileStart = top / (float) height;
+				m_tileShare = h / (float) height;
+				int[] qPixels = ditherRect(0, top, width, h, dither);
+				result.setPixels(qPixels, 0, width, 0, top, width, h);
+			}
+		}
+		finally {
+			m_tiling = false;
+			m_tileStart = 0;
+			m_tileShare = 1;
+			if (!keepsLookups())
+				clearLookups();
+		}
+		return result;
+	}
+
+	/* The largest palette whose uncompressed indexed image, packed rows plus an RGBA palette, fits into maxBytes */
+	public static int maxColorsForBytes(int width, int height, long maxBytes) {
+		int maxColors = 2;
+		for (int bits = 2; bits <= 8; bits <<= 1) {
+			long bytes = ((long) width * bits + 7) / 8 * height + 4L * (1 << bits);
+			if (bytes > maxBytes)
+				break;
+			maxColors = 1 << bits;
+		}
+		return maxColors;
+	}
+
+	/* Number of colors used by the last conversion */
+	public int getPaletteSize() {
+		return m_palette.length;
+	}
+
+	/* The palette of the last conversion with the metric it was made with */
+	public Palette getPalette() {
+		int[] colors = new int[m_palette.length];
+		for (int i = 0; i < colors.length; ++i)
+			colors[i] = m_palette[i];
+		return new Palette(colors, PR, PG, PB, PA, ratio, Math.abs(weight));
+	}
+
+	/* Replaces the image, everything derived from the previous one is dropped */
+	public void setBitmap(Bitmap bitmap) {
+		fromBitmap(bitmap);
+		analyzed = false;
+		hasSemiTransparency = false;
+		m_transparentPixelIndex = -1;
+		Arrays.fill(histograms, null);
+		m_distinctColors = null;
+		m_tooManyColors = 0;
+	}
+
+	/* Copies the new pixels of a rectangle into the image, whatever was derived from the old ones is dropped */
+	protected void setPixels(final int[] rect, final int left, final int top, final int w, final int h) {
+		for (int y = 0; y < h; ++y)
+			System.arraycopy(rect, y * w, pixels, left + (top + y) * width, w);
+		Arrays.fill(histograms, null);
+		m_distinctColors = null;
+		m_tooManyColors = 0;
+	}
+
+	/* Dithers a rectangle of the image on its own onto the palette and metric of the last conversion */
+	protected int[] ditherRect(final int left, final int top, final int w, final int h, final boolean dither) throws Exception {
+		int[] rect = new int[w * h];
+		for (int y = 0; y < h; ++y)
+			System.arraycopy(pixels, left + (top + y) * width, rect, y * w, w);
+
+		return dither(rect, m_palette, w, h, dither);
+	}
+
+	protected void clearLookups() {
+		closestMap.clear();
+		nearestMap.clear();
+	}
+
+	/* Lookups outlive a dithering while images are mapped onto the same palette, or the tiles of an image are dithered */
+	protected boolean keepsLookups() {
+		return m_remapPalette != null || m_tiling;
+	}
+
+	/* Adds to a lookup, which is emptied first once it holds lookupLimit entries */
+	protected <V> void putLookup(final Map<Integer, V> lookup, final int key, final V value) {
+		if (lookup.size() >= lookupLimit)
+			lookup.clear();
+		lookup.put(key, value);
+	}
+
+	private void releasePalette() {
+		if (m_remapPalette != null) {
+			m_remapPalette = null;
+			clearLookups();
+		}
+	}
+
+	protected void setMetric(Palette palette) {
+		PR = palette.PR; PG = palette.PG; PB = palette.PB; PA = palette.PA;
+		ratio = palette.ratio;
+		weight = palette.weight;
+	}
+
+	/* Maps the image onto a palette made before, no palette is generated.
+	 * The color lookups stay warm for the next image mapped onto the same palette, see setBitmap. */
+	public Bitmap convert(Palette palette, boolean dither) throws Exception {
+		analyze();
+		reset(palette.size());
+		/* The lookups are keyed and filled by the alpha layout and transparent color of the image, which change with it */
+		if (palette != m_remapPalette || m_remapAlpha != hasAlpha() || m_remapSemiTransparency != hasSemiTransparency || m_remapTransparentColor != m_transparentColor) {
+			clearLookups();
+			m_remapPalette = palette;
+			m_remapAlpha = hasAlpha();
+			m_remapSemiTransparency = hasSemiTransparency;
+			m_remapTransparentColor = m_transparentColor;
+		}
+		setMetric(palette);
+		if (palette.size() > 2)
+			planMemory(palette.size(), dither);
+
+		Integer[] colors = palette.toArray();
+		m_palette = colors;
+		if (m_tileRows > 0)
+			return ditherTiles(dither);
+		int[] qPixels = dither(pixels, colors, width, height, dither);
+		return Bitmap.createBitmap(qPixels, width, height, Bitmap.Config.ARGB_8888);
+	}
+
+	/* One palette for all the images added to histogram, the image of this quantizer only lends its instance.
+	 * The images are then mapped onto it with convert(Palette, dither). */
+	public Palette quantize(Histogram histogram, int nMaxColors) {
+		analyze();
+		final boolean semiTransparency = hasSemiTransparency;
+		final int transparentPixelIndex = m_transparentPixelIndex;
+		hasSemiTransparency = histogram.hasSemiTransparency();
+		m_transparentPixelIndex = histogram.hasTransparency() ? 0 : -1;
+		try {
+			reset(nMaxColors);
+			Integer[] palette = pnnquan(histogram, new int[] { nMaxColors })[0];
+			for (int k = 1; k < palette.length; ++k) {
+				if (Color.alpha(palette[k]) == 0) {
+					Integer transparent = palette[k];
+					palette[k] = palette[0]; palette[0] = transparent;
+					break;
+				}
+			}
+			m_palette = palette;
+			return getPalette();
+		}
+		finally {
+			hasSemiTransparency = semiTransparency;
+			m_transparentPixelIndex = transparentPixelIndex;
+		}
+	}
+
+	/* Saves the palette of the last conversion as an inverse colormap keyed like this image */
+	public void writeInverseColormap(File file) throws IOException {
+		analyze();
+		InverseColormap.write(file, getPalette(), hasSemiTransparency, hasAlpha());
+	}
+
+	/* Maps the image through a precomputed inverse colormap, no palette is generated and no lookups are built */
+	public Bitmap convert(InverseColormap colormap, boolean dither) throws Exception {
+		releasePalette();
+		analyze();
+		Palette palette = colormap.getPalette();
+		reset(palette.size());
+		setMetric(palette);
+
+		Integer[] colors = palette.toArray();
+		m_palette = colors;
+		int[] qPixels = ditherer.dither(width, height, pixels, colors, colormap, null, getDitherWeight(), dither);
+		return Bitmap.createBitmap(qPixels, width, height, Bitmap.Config.ARGB_8888);
+	}
+
+	/* Runs a conversion of this quantizer on the default QuantizerScheduler, one at a time per quantizer */
+	private CompletableFuture<Bitmap> submit(final QuantizerScheduler.Priority priority, final QuantizerScheduler.Conversion conversion) {
+		return m_asyncConversions.submit(QuantizerScheduler.getDefault(), (long) width * height, priority, cancellationSignal -> {
+			setTaskCancellationSignal(cancellationSignal);
+			try {
+				return conversion.convert(cancellationSignal);
+			}
+			finally {
+				setTaskCancellationSignal(null);
+			}
+		});
+	}
+
+	public CompletableFuture<Bitmap> convertAsync(int nMaxColors, boolean dither, QuantizerScheduler.Priority priority) {
+		return submit(priority, cancellationSignal -> convert(nMaxColors, dither));
+	}
+
+	public CompletableFuture<Bitmap> convertAsync(int nMaxColors, boolean dither) {
+		return convertAsync(nMaxColors, dither, QuantizerScheduler.Priority.INTERACTIVE);
+	}
+
+	public CompletableFuture<Bitmap> convertAsync(Palette palette, boolean dither, QuantizerScheduler.Priority priority) {
+		return submit(priority, cancellationSignal -> convert(palette, dither));
+	}
+
 	public boolean hasAlpha() {
 		return m_transparentPixelIndex > -1;
 	}
@@ -0,0 +1,8 @@
+package com.android.nQuant;
+/* Receives the progress of a conversion, see PnnQuantizer.setProgressListener
+Copyright (c) 2026 Miller Cy Chan */
+
+public interface ProgressListener {
+	/* Share of the conversion done, from 0 to 1, called on the converting thread with rising values */
+	void onProgress(float progress);
+}
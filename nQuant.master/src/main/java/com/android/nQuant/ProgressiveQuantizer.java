@@ -0,0 +1,138 @@
+package com.android.nQuant;
+/* Delivers a quick preview of a conversion before the full resolution result
+Copyright (c) 2026 Miller Cy Chan
+* The image is first decoded with an inSampleSize that brings it within the preview budget, and the palette made for it
+* gives a dithered preview. The full image then only has to be mapped onto that palette, unless its colors differ
+* from the preview by more than the allowed drift, in which case the palette is made again at full resolution. */
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.CancellationSignal;
+
+import java.util.concurrent.CompletableFuture;
+
+public class ProgressiveQuantizer {
+	public interface Callback {
+		/* Called from the converting thread as soon as the preview is ready */
+		void onPreview(Bitmap preview);
+
+		void onResult(Bitmap result);
+	}
+
+	/* The preview palette is merged from a median cut, see PnnQuantizer.setPreReduction */
+	private static final int PREVIEW_PRE_REDUCTION = 4;
+
+	private final int nMaxColors;
+	private final boolean dither, useLab;
+	private int previewPixels = 1 << 17;
+	private double maxDrift = .05;
+	private long memoryBudget = 0;
+	private boolean paletteReused;
+	private CancellationSignal cancellationSignal, taskCancellationSignal;
+	private final QuantizerScheduler.Serial asyncConversions = new QuantizerScheduler.Serial();
+	private ProgressListener progressListener;
+
+	public ProgressiveQuantizer(int nMaxColors, boolean dither, boolean useLab) {
+		this.nMaxColors = nMaxColors;
+		this.dither = dither;
+		this.useLab = useLab;
+	}
+
+	/* Most pixels of the preview, an image that already fits is converted once without a preview */
+	public void setPreviewPixels(int previewPixels) {
+		this.previewPixels = previewPixels;
+	}
+
+	/* Share of the pixels, from 0 to 1, whose colors may differ between the preview and the full image
+	 * before the palette is made again, see FrameSequenceQuantizer.setDriftThreshold */
+	public void setMaxDrift(double maxDrift) {
+		this.maxDrift = maxDrift;
+	}
+
+	/* Applies to the preview and to the full image, see PnnQuantizer.setMemoryBudget */
+	public void setMemoryBudget(long maxBytes) {
+		memoryBudget = maxBytes;
+	}
+
+	public void setCancellationSignal(CancellationSignal cancellationSignal) {
+		this.cancellationSignal = cancellationSignal;
+	}
+
+	/* The preview and the full result each report from 0 to 1 */
+	public void setProgressListener(ProgressListener progressListener) {
+		this.progressListener = progressListener;
+	}
+
+	private PnnQuantizer newQuantizer(Bitmap bitmap) {
+		PnnQuantizer quantizer = useLab ? new PnnLABQuantizer(bitmap) : new PnnQuantizer(bitmap);
+		quantizer.setCancellationSignal(cancellationSignal);
+		quantizer.setTaskCancellationSignal(taskCancellationSignal);
+		quantizer.setProgressListener(progressListener);
+		quantizer.setMemoryBudget(memoryBudget);
+		return quantizer;
+	}
+
+	/* Smallest power of 2 that brings width x height within the preview budget */
+	private int getSampleSize(int width, int height) {
+		int sampleSize = 1;
+		while ((long) (width / sampleSize) * (height / sampleSize) > previewPixels)
+			sampleSize <<= 1;
+		return sampleSize;
+	}
+
+	public Bitmap convert(String fname, Callback callback) throws Exception {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(fname, options);
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = getSampleSize(options.outWidth, options.outHeight);
+
+		paletteReused = false;
+		PnnQuantizer quantizer = newQuantizer(BitmapFactory.decodeFile(fname, options));
+		if (options.inSampleSize > 1)
+			quantizer.setPreReduction(PREVIEW_PRE_REDUCTION);
+		Bitmap result = quantizer.convert(nMaxColors, dither);
+		if (options.inSampleSize > 1) {
+			callback.onPreview(result);
+			quantizer.setPreReduction(0);
+			if (cancellationSignal != null)
+				cancellationSignal.throwIfCanceled();
+			if (taskCancellationSignal != null)
+				taskCancellationSignal.throwIfCanceled();
+
+			Palette palette = quantizer.getPalette();
+			float[] previewSignature = BitmapUtilities.colorSignature(quantizer.pixels);
+			quantizer.setBitmap(BitmapFactory.decodeFile(fname));
+			if (BitmapUtilities.signatureDrift(previewSignature, BitmapUtilities.colorSignature(quantizer.pixels)) > maxDrift)
+				result = quantizer.convert(nMaxColors, dither);
+			else {
+				paletteReused = true;
+				result = quantizer.convert(palette, dither);
+			}
+		}
+		callback.onResult(result);
+		return result;
+	}
+
+	/* Runs convert on the default QuantizerScheduler at interactive priority, one at a time per ProgressiveQuantizer.
+	 * Canceling the future stops it, and so does the signal given to setCancellationSignal. */
+	public CompletableFuture<Bitmap> convertAsync(String fname, Callback callback) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(fname, options);
+		return asyncConversions.submit(QuantizerScheduler.getDefault(), (long) options.outWidth * options.outHeight, QuantizerScheduler.Priority.INTERACTIVE, cancellationSignal -> {
+			taskCancellationSignal = cancellationSignal;
+			try {
+				return convert(fname, callback);
+			}
+			finally {
+				taskCancellationSignal = null;
+			}
+		});
+	}
+
+	/* Whether the last full result was mapped onto the preview palette */
+	public boolean isPaletteReused() {
+		return paletteReused;
+	}
+}
@@ -0,0 +1,221 @@
+package com.android.nQuant;
+/* Runs conversions on a bounded set of workers shared by the whole process
+Copyright (c) 2026 Miller Cy Chan
+* Queued conversions start in order of priority, then of submission. A conversion only starts while the pixels of the
+* conversions running with it stay within maxPixels, so several full size images are never held at once by accident;
+* one image larger than that runs alone. Canceling a future stops its conversion through the CancellationSignal it was given. */
+
+import android.graphics.Bitmap;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class QuantizerScheduler {
+	public enum Priority {
+		/* Someone is waiting to see the result */
+		INTERACTIVE,
+		BACKGROUND
+	}
+
+	public interface Conversion {
+		Bitmap convert(CancellationSignal cancellationSignal) throws Exception;
+	}
+
+	/* Bytes a conversion holds per pixel, roughly: source, quantized result, output bitmap and saliencies */
+	private static final int BYTES_PER_PIXEL = 16;
+	private static QuantizerScheduler defaultScheduler;
+
+	private final int workers;
+	private final long maxPixels;
+	private final ExecutorService executor;
+	private final PriorityQueue<Task> queue = new PriorityQueue<>();
+	private long sequence = 0, pixelsInFlight = 0;
+	private int running = 0;
+
+	/* virtualThreads asks for a virtual thread per conversion where the runtime has them, on a server JVM,
+	 * otherwise workers platform threads are used. Either way at most workers conversions run at once. */
+	public QuantizerScheduler(int workers, long maxPixels, boolean virtualThreads) {
+		this.workers = Math.max(1, workers);
+		this.maxPixels = maxPixels;
+		ExecutorService executor = virtualThreads ? newVirtualThreadExecutor() : null;
+		this.executor = executor != null ? executor : Executors.newFixedThreadPool(this.workers, newThreadFactory());
+	}
+
+	private static ThreadFactory newThreadFactory() {
+		final AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, "nQuant-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	/* Looked up at run time, virtual threads are not part of the Java level the library is built for */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/* One worker per core and a quarter of the heap for images */
+	public static synchronized QuantizerScheduler getDefault() {
+		if (defaultScheduler == null) {
+			final int cores = Runtime.getRuntime().availableProcessors();
+			defaultScheduler = new QuantizerScheduler(cores, Runtime.getRuntime().maxMemory() / 4 / BYTES_PER_PIXEL, false);
+		}
+		return defaultScheduler;
+	}
+
+	/* Replaces the scheduler used by convertAsync, conversions already submitted to the previous one still run there */
+	public static synchronized void setDefault(QuantizerScheduler scheduler) {
+		defaultScheduler = scheduler;
+	}
+
+	private final class Task implements Runnable, Comparable<Task> {
+		private final Priority priority;
+		private final long order, pixels;
+		private final Conversion conversion;
+		private final CancellationSignal cancellationSignal = new CancellationSignal();
+		private final CompletableFuture<Bitmap> future = new CompletableFuture<>();
+
+		private Task(final Priority priority, final long order, final long pixels, final Conversion conversion) {
+			this.priority = priority;
+			this.order = order;
+			this.pixels = pixels;
+			this.conversion = conversion;
+		}
+
+		@Override
+		public int compareTo(Task other) {
+			if (priority != other.priority)
+				return priority.compareTo(other.priority);
+			return Long.compare(order, other.order);
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (!future.isDone())
+					future.complete(conversion.convert(cancellationSignal));
+			} catch (OperationCanceledException e) {
+				future.cancel(false);
+			} catch (Throwable t) {
+				future.completeExceptionally(t);
+			} finally {
+				finished(this);
+			}
+		}
+	}
+
+	/* Starts queued conversions while there are free workers and their pixels fit */
+	private void dispatch() {
+		while (running < workers && !queue.isEmpty()) {
+			final Task task = queue.peek();
+			if (running > 0 && pixelsInFlight + task.pixels > maxPixels)
+				break;
+
+			queue.poll();
+			++running;
+			pixelsInFlight += task.pixels;
+			executor.execute(task);
+		}
+	}
+
+	private synchronized void finished(final Task task) {
+		--running;
+		pixelsInFlight -= task.pixels;
+		dispatch();
+	}
+
+	private synchronized void canceled(final Task task) {
+		queue.remove(task);
+		task.cancellationSignal.cancel();
+	}
+
+	/* pixels is the size of the image the conversion works on */
+	public synchronized CompletableFuture<Bitmap> submit(long pixels, Priority priority, Conversion conversion) {
+		final Task task = new Task(priority, sequence++, pixels, conversion);
+		task.future.whenComplete((result, error) -> {
+			if (task.future.isCancelled())
+				canceled(task);
+		});
+		queue.add(task);
+		dispatch();
+		return task.future;
+	}
+
+	/* Runs the conversions submitted through it one after another, in order of submission, for conversions sharing a quantizer.
+	 * A conversion only reaches the scheduler once the previous one has finished, so while it waits it holds neither a worker nor pixels. */
+	public static final class Serial {
+		private CompletableFuture<Void> last = CompletableFuture.completedFuture(null);
+
+		public synchronized CompletableFuture<Bitmap> submit(final QuantizerScheduler scheduler, final long pixels, final Priority priority, final Conversion conversion) {
+			final CompletableFuture<Bitmap> result = new CompletableFuture<>();
+			final CompletableFuture<Void> finished = new CompletableFuture<>();
+			last.whenComplete((ignored, previousError) -> {
+				if (result.isDone()) {
+					finished.complete(null);
+					return;
+				}
+
+				/* Whoever sets started first decides: the conversion runs and finishes the chain, or it was canceled before it could run */
+				final AtomicBoolean started = new AtomicBoolean();
+				final CompletableFuture<Bitmap> future;
+				try {
+					future = scheduler.submit(pixels, priority, cancellationSignal -> {
+						if (!started.compareAndSet(false, true))
+							throw new OperationCanceledException();
+						try {
+							return conversion.convert(cancellationSignal);
+						}
+						finally {
+							finished.complete(null);
+						}
+					});
+				} catch (RuntimeException e) {
+					finished.complete(null);
+					result.completeExceptionally(e);
+					return;
+				}
+				future.whenComplete((bitmap, error) -> {
+					if (future.isCancelled()) {
+						if (started.compareAndSet(false, true))
+							finished.complete(null);
+						result.cancel(false);
+					}
+					else if (error != null)
+						result.completeExceptionally(error);
+					else
+						result.complete(bitmap);
+				});
+				result.whenComplete((bitmap, error) -> {
+					if (result.isCancelled())
+						future.cancel(false);
+				});
+			});
+			last = finished;
+			return result;
+		}
+	}
+
+	/* Conversions still queued are dropped, running ones finish */
+	public void shutdown() {
+		Task[] queued;
+		synchronized (this) {
+			queued = queue.toArray(new Task[0]);
+			queue.clear();
+		}
+		for (Task task : queued)
+			task.future.cancel(false);
+		executor.shutdown();
+	}
+}
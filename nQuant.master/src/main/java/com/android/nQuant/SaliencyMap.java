@@ -0,0 +1,147 @@
+package com.android.nQuant;
+/* Per pixel saliency from CIELAB lightness and alpha
+Copyright (c) 2026 Miller Cy Chan
+* The map depends on the source pixels only, so it is kept with the decoded image and shared by every conversion of it.
+* Saliencies lie in [SALIENCY_BASE, 1] and are stored as 16 bit fractions above the base, or 8 bit ones for a compact map. */
+
+import android.graphics.Color;
+
+import java.util.stream.IntStream;
+
+public class SaliencyMap {
+	private static final float SALIENCY_BASE = .1f;
+	private static final float SCALE = 65535f, COMPACT_SCALE = 255f;
+	private static final int CHUNK_SIZE = 1 << 16;
+
+	/* One of them is null */
+	private final short[] values;
+	private final byte[] compactValues;
+
+	private SaliencyMap(final short[] values) {
+		this.values = values;
+		compactValues = null;
+	}
+
+	private SaliencyMap(final byte[] compactValues) {
+		values = null;
+		this.compactValues = compactValues;
+	}
+
+	private static float lightness(final int c)
+	{
+		/* Same as the L of ColorUtils.colorToLAB, which only depends on the relative luminance Y */
+		final double y = CIELABConvertor.luminance(c);
+		final double fy = y > 0.008856 ? Math.pow(y, 1 / 3.0) : (903.3 * y + 16) / 116;
+		return (float) Math.max(0, 116 * fy - 16);
+	}
+
+	private static short value(final int pixel)
+	{
+		return (short) Math.round(lightness(pixel) / 100f * Color.alpha(pixel) / 255f * SCALE);
+	}
+
+	private static void computeChunk(final int[] pixels, final short[] values, final int start)
+	{
+		final int end = Math.min(pixels.length, start + CHUNK_SIZE);
+		int lastPixel = 0;
+		short last = 0;
+		for (int i = start; i < end; ++i) {
+			final int pixel = pixels[i];
+			if (i == start || pixel != lastPixel) {
+				lastPixel = pixel;
+				last = value(pixel);
+			}
+			values[i] = last;
+		}
+	}
+
+	public static SaliencyMap compute(final int[] pixels)
+	{
+		final short[] values = new short[pixels.length];
+		final int chunks = (pixels.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		IntStream.range(0, chunks).parallel().forEach(k -> computeChunk(pixels, values, k * CHUNK_SIZE));
+		return new SaliencyMap(values);
+	}
+
+	/* Rounds a 16 bit value to the 8 bits of a compact map */
+	private static byte compactValue(final short value)
+	{
+		return (byte) (((value & 0xFFFF) + 128) / 257);
+	}
+
+	/* Same map computed once per distinct color of pixels, every pixel then takes the value of its color index.
+	 * A compact map takes one byte per pixel instead of two. */
+	static SaliencyMap compute(final int[] pixels, final ColorTable colors, final boolean compact)
+	{
+		final int[] palette = colors.colors();
+		final short[] byIndex = new short[palette.length];
+		IntStream.range(0, palette.length).parallel().forEach(k -> byIndex[k] = value(palette[k]));
+
+		final short[] values = compact ? null : new short[pixels.length];
+		final byte[] compactValues = compact ? new byte[pixels.length] : null;
+		final int chunks = (pixels.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		IntStream.range(0, chunks).parallel().forEach(k -> {
+			final int end = Math.min(pixels.length, (k + 1) * CHUNK_SIZE);
+			for (int i = k * CHUNK_SIZE; i < end; ++i) {
+				if (compact)
+					compactValues[i] = compactValue(byIndex[colors.get(pixels[i])]);
+				else
+					values[i] = byIndex[colors.get(pixels[i])];
+			}
+		});
+		return compact ? new SaliencyMap(compactValues) : new SaliencyMap(values);
+	}
+
+	public boolean isCompact()
+	{
+		return values == null;
+	}
+
+	/* Recomputes the values of a rectangle of an image of the given width whose pixels changed */
+	void update(final int[] pixels, final int width, final int left, final int top, final int w, final int h)
+	{
+		for (int y = top; y < top + h; ++y) {
+			for (int i = left + y * width; i < left + w + y * width; ++i) {
+				if (values != null)
+					values[i] = value(pixels[i]);
+				else
+					compactValues[i] = compactValue(value(pixels[i]));
+			}
+		}
+	}
+
+	/* Values of a rectangle as a map of its own */
+	SaliencyMap crop(final int width, final int left, final int top, final int w, final int h)
+	{
+		final Object rect = values != null ? new short[w * h] : new byte[w * h];
+		for (int y = 0; y < h; ++y)
+			System.arraycopy(values != null ? values : compactValues, left + (top + y) * width, rect, y * w, w);
+		return values != null ? new SaliencyMap((short[]) rect) : new SaliencyMap((byte[]) rect);
+	}
+
+	/* Empty map of the same size for gathering into another order */
+	SaliencyMap newBuffer()
+	{
+		return values != null ? new SaliencyMap(new short[values.length]) : new SaliencyMap(new byte[compactValues.length]);
+	}
+
+	void copy(final SaliencyMap src, final int srcPos, final int pos)
+	{
+		if (values != null)
+			values[pos] = src.values[srcPos];
+		else
+			compactValues[pos] = src.compactValues[srcPos];
+	}
+
+	public float get(final int i)
+	{
+		if (values == null)
+			return SALIENCY_BASE + (1 - SALIENCY_BASE) * (compactValues[i] & 0xFF) / COMPACT_SCALE;
+		return SALIENCY_BASE + (1 - SALIENCY_BASE) * (values[i] & 0xFFFF) / SCALE;
+	}
+
+	public int size()
+	{
+		return values != null ? values.length : compactValues.length;
+	}
+}
@@ -0,0 +1,84 @@
+package com.android.nQuant;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class ColorTableTest {
+	/* Adds colors and checks the table against a LinkedHashMap, which keeps the order of first appearance */
+	private static ColorTable fill(final int[] colors, final int capacity) {
+		ColorTable table = new ColorTable(capacity);
+		Map<Integer, Integer> expected = new LinkedHashMap<>();
+		for (int color : colors) {
+			Integer index = expected.get(color);
+			if (index == null)
+				expected.put(color, index = expected.size());
+			assertEquals(index.intValue(), table.add(color));
+		}
+
+		assertEquals(expected.size(), table.size());
+		int[] order = new int[expected.size()];
+		int i = 0;
+		for (int color : expected.keySet()) {
+			order[i] = color;
+			assertEquals(i++, table.get(color));
+		}
+		assertArrayEquals(order, table.colors());
+		return table;
+	}
+
+	@Test
+	public void keepsOrderOfFirstAppearance() {
+		int[] colors = new int[20000];
+		Random random = new Random(1);
+		for (int i = 0; i < colors.length; ++i)
+			colors[i] = 0xFF000000 | random.nextInt(5000);
+		fill(colors, 16);
+	}
+
+	/* Colors that differ only in their high bits, or are multiples of a power of 2, cluster under a weak hash */
+	@Test
+	public void probesAtHighLoad() {
+		int[] colors = new int[1 << 16];
+		for (int i = 0; i < colors.length; ++i)
+			colors[i] = (i & 1) == 0 ? i << 16 : i << 8;
+		ColorTable table = fill(colors, colors.length);
+		for (int i = 0; i < 1000; ++i)
+			assertEquals(-1, table.get((i << 16) | 0x5A));
+	}
+
+	@Test
+	public void growsPastTheInitialCapacity() {
+		int[] colors = new int[100000];
+		for (int i = 0; i < colors.length; ++i)
+			colors[i] = i * 0x01010101;
+		fill(colors, 2);
+	}
+
+	@Test
+	public void sortedIndicesFollowTheColors() {
+		int[] colors = { 0xFF00FF00, 0x00000000, 0xFFFFFFFF, 0x80102030, 0xFF000000, 0x7FFFFFFF };
+		ColorTable table = fill(colors, 4);
+		int[] sorted = colors.clone();
+		Arrays.sort(sorted);
+		int[] indices = table.sortedIndices();
+		assertEquals(sorted.length, indices.length);
+		for (int i = 0; i < indices.length; ++i)
+			assertEquals(sorted[i], colors[indices[i]]);
+	}
+
+	@Test
+	public void missingColor() {
+		ColorTable table = new ColorTable(8);
+		assertEquals(-1, table.get(0));
+		table.add(0);
+		assertEquals(0, table.get(0));
+		assertEquals(-1, table.get(1));
+	}
+}
@@ -0,0 +1,103 @@
+package com.android.nQuant;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/* Histograms are built from streams here, adding pixels needs android.graphics.Color */
+public class HistogramTest {
+	private static final int MAGIC = 0x4E514853;
+
+	/* bins holds {key, alpha, red, green, blue sums, count} per bin */
+	private static byte[] histogram(int magic, boolean hasSemiTransparency, boolean hasTransparency, int size, long[][] bins) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(magic);
+		data.writeBoolean(hasSemiTransparency);
+		data.writeBoolean(hasTransparency);
+		data.writeInt(size);
+		for (long[] bin : bins) {
+			data.writeInt((int) bin[0]);
+			for (int c = 1; c < 6; ++c)
+				data.writeLong(bin[c]);
+		}
+		return out.toByteArray();
+	}
+
+	private static void assertCorrupt(byte[] bytes, Class<? extends IOException> expected) {
+		try {
+			Histogram.read(new ByteArrayInputStream(bytes));
+			fail("read a corrupt histogram");
+		} catch (IOException e) {
+			assertEquals(expected, e.getClass());
+		}
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		long[][] bins = {
+			{ 0xF800, 255 * 10, 250 * 10, 2 * 10, 3 * 10, 10 },
+			{ 0x001F, 255 * 4, 0, 0, 252 * 4, 4 },
+			{ 0x7BEF, 255 * 6, 120 * 6, 125 * 6, 122 * 6, 6 }
+		};
+		byte[] bytes = histogram(MAGIC, false, true, bins.length, bins);
+		Histogram histogram = Histogram.read(new ByteArrayInputStream(bytes));
+		assertFalse(histogram.hasSemiTransparency());
+		assertTrue(histogram.hasTransparency());
+		assertEquals(3, histogram.size());
+		assertEquals(20, histogram.pixelCount());
+
+		/* Bins come out in key order as means */
+		double[][] means = histogram.bins();
+		assertArrayEquals(new double[] { 255, 0, 0, 252, 4 }, means[0], 1e-9);
+		assertArrayEquals(new double[] { 255, 120, 125, 122, 6 }, means[1], 1e-9);
+		assertArrayEquals(new double[] { 255, 250, 2, 3, 10 }, means[2], 1e-9);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		histogram.write(out);
+		assertArrayEquals(bytes, out.toByteArray());
+	}
+
+	@Test
+	public void roundTripOfEmptyHistogram() throws IOException {
+		byte[] bytes = histogram(MAGIC, true, false, 0, new long[0][]);
+		Histogram histogram = Histogram.read(new ByteArrayInputStream(bytes));
+		assertTrue(histogram.hasSemiTransparency());
+		assertEquals(0, histogram.size());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		histogram.write(out);
+		assertArrayEquals(bytes, out.toByteArray());
+	}
+
+	@Test
+	public void rejectsWrongMagic() throws IOException {
+		assertCorrupt(histogram(0x4E515031, false, false, 0, new long[0][]), IOException.class);
+	}
+
+	@Test
+	public void rejectsBadSizes() throws IOException {
+		assertCorrupt(histogram(MAGIC, false, false, -1, new long[0][]), IOException.class);
+		assertCorrupt(histogram(MAGIC, false, false, (1 << 16) + 1, new long[0][]), IOException.class);
+	}
+
+	@Test
+	public void rejectsKeysOutsideTheLayout() throws IOException {
+		assertCorrupt(histogram(MAGIC, false, false, 1, new long[][] { { 1 << 16, 0, 0, 0, 0, 1 } }), IOException.class);
+		assertCorrupt(histogram(MAGIC, false, false, 1, new long[][] { { -1, 0, 0, 0, 0, 1 } }), IOException.class);
+	}
+
+	@Test
+	public void rejectsTruncatedBins() throws IOException {
+		assertCorrupt(histogram(MAGIC, false, false, 2, new long[][] { { 5, 0, 0, 0, 0, 1 } }), EOFException.class);
+	}
+}
@@ -0,0 +1,113 @@
+package com.android.nQuant;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class IndexedHeapTest {
+	/* Pops every item and checks they come out by key, then by nothing else */
+	private static void assertDrainsInOrder(IndexedHeap heap, float[] keys, boolean[] present) {
+		float last = Float.NEGATIVE_INFINITY;
+		int count = 0;
+		for (boolean p : present) {
+			if (p)
+				++count;
+		}
+		assertEquals(count, heap.size());
+
+		while (heap.size() > 0) {
+			final int item = heap.peek();
+			assertEquals("item " + item + " was removed", true, present[item]);
+			for (int i = 0; i < keys.length; ++i) {
+				if (present[i] && keys[i] < keys[item])
+					throw new AssertionError("item " + i + " has a smaller key than the top " + item);
+			}
+			if (keys[item] < last)
+				throw new AssertionError("keys out of order");
+			last = keys[item];
+			present[item] = false;
+			heap.remove(item);
+		}
+	}
+
+	@Test
+	public void addThenDrain() {
+		final int n = 1000;
+		IndexedHeap heap = new IndexedHeap(n);
+		float[] keys = new float[n];
+		boolean[] present = new boolean[n];
+		Random random = new Random(1);
+		for (int i = 0; i < n; ++i) {
+			keys[i] = random.nextInt(200);
+			present[i] = true;
+			heap.add(i, keys[i]);
+		}
+		assertDrainsInOrder(heap, keys, present);
+	}
+
+	@Test
+	public void orderAfterUpdates() {
+		final int n = 500;
+		IndexedHeap heap = new IndexedHeap(n);
+		float[] keys = new float[n];
+		boolean[] present = new boolean[n];
+		Random random = new Random(2);
+		for (int i = 0; i < n; ++i) {
+			keys[i] = random.nextFloat();
+			present[i] = true;
+			heap.add(i, keys[i]);
+		}
+
+		/* Raise and lower keys anywhere in the heap, including the top */
+		for (int k = 0; k < 2000; ++k) {
+			final int item = k % 7 == 0 ? heap.peek() : random.nextInt(n);
+			keys[item] = random.nextBoolean() ? keys[item] * .5f : keys[item] + random.nextFloat();
+			heap.update(item, keys[item]);
+		}
+		assertDrainsInOrder(heap, keys, present);
+	}
+
+	@Test
+	public void orderAfterRemovals() {
+		final int n = 500;
+		IndexedHeap heap = new IndexedHeap(n);
+		float[] keys = new float[n];
+		boolean[] present = new boolean[n];
+		Random random = new Random(3);
+		for (int i = 0; i < n; ++i) {
+			keys[i] = random.nextFloat();
+			present[i] = true;
+			heap.add(i, keys[i]);
+		}
+
+		/* Remove from the middle, the top and the last position, with updates in between as the merge does */
+		for (int k = 0; k < 300; ++k) {
+			int item = random.nextInt(n);
+			if (k % 5 == 0)
+				item = heap.peek();
+			if (!present[item])
+				continue;
+			present[item] = false;
+			heap.remove(item);
+
+			final int other = random.nextInt(n);
+			if (present[other]) {
+				keys[other] = random.nextFloat();
+				heap.update(other, keys[other]);
+			}
+		}
+		assertDrainsInOrder(heap, keys, present);
+	}
+
+	@Test
+	public void removeLastAndOnlyItem() {
+		IndexedHeap heap = new IndexedHeap(2);
+		heap.add(1, 5f);
+		heap.remove(1);
+		assertEquals(0, heap.size());
+		heap.add(0, 3f);
+		assertEquals(0, heap.peek());
+	}
+}
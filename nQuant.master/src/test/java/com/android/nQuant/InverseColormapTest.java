@@ -0,0 +1,111 @@
+package com.android.nQuant;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/* Reading the header of files laid out by hand, writing a table needs android.graphics.Color and is covered by the instrumented tests */
+public class InverseColormapTest {
+	private static final int MAGIC = 0x4E514943, VERSION = 1, CELLS = 65536;
+	private File file;
+
+	@Before
+	public void createFile() throws IOException {
+		file = File.createTempFile("colormap", ".bin");
+	}
+
+	@After
+	public void deleteFile() {
+		file.delete();
+	}
+
+	/* magic, version, flags, size, colors, six weights padded to 8, then a table of CELLS cells */
+	private void write(int magic, int version, int size, int[] colors, int cells) throws IOException {
+		try (DataOutputStream data = new DataOutputStream(new FileOutputStream(file))) {
+			data.writeInt(magic);
+			data.writeInt(version);
+			data.writeInt(0);
+			data.writeInt(size);
+			for (int color : colors)
+				data.writeInt(color);
+			final double[] weights = { .299, .587, .114, .3333, .5, .25 };
+			for (double weight : weights)
+				data.writeDouble(weight);
+			for (int i = (16 + 4 * colors.length + 48) & 7; i > 0 && i < 8; ++i)
+				data.writeByte(0);
+			for (int i = 0; i < cells; ++i)
+				data.writeInt(i % colors.length << 16 | (i + 1) % colors.length);
+		}
+	}
+
+	private void assertCorrupt() {
+		try {
+			InverseColormap.open(file);
+			fail("opened a corrupt colormap");
+		} catch (IOException e) {
+			/* expected */
+		}
+	}
+
+	@Test
+	public void readsThePalette() throws IOException {
+		int[] colors = { 0xFF000000, 0xFFFFFFFF, 0xFF808080 };
+		write(MAGIC, VERSION, colors.length, colors, CELLS);
+		Palette palette = InverseColormap.open(file).getPalette();
+		assertArrayEquals(colors, palette.getColors());
+		assertEquals(.299, palette.PR, 0);
+		assertEquals(.587, palette.PG, 0);
+		assertEquals(.114, palette.PB, 0);
+		assertEquals(.3333, palette.PA, 0);
+		assertEquals(.5, palette.ratio, 0);
+		assertEquals(.25, palette.weight, 0);
+	}
+
+	@Test
+	public void rejectsWrongMagicOrVersion() throws IOException {
+		int[] colors = { 0xFF000000, 0xFFFFFFFF };
+		write(0x4E515031, VERSION, colors.length, colors, CELLS);
+		assertCorrupt();
+		write(MAGIC, VERSION + 1, colors.length, colors, CELLS);
+		assertCorrupt();
+	}
+
+	@Test
+	public void rejectsFilesShorterThanTheHeader() throws IOException {
+		new FileOutputStream(file).close();
+		assertCorrupt();
+		try (DataOutputStream data = new DataOutputStream(new FileOutputStream(file))) {
+			data.writeInt(MAGIC);
+			data.writeInt(VERSION);
+		}
+		assertCorrupt();
+	}
+
+	@Test
+	public void rejectsSizesThatDoNotMatchTheFile() throws IOException {
+		int[] colors = { 0xFF000000, 0xFFFFFFFF };
+		write(MAGIC, VERSION, 3, colors, CELLS);
+		assertCorrupt();
+		write(MAGIC, VERSION, 0, colors, CELLS);
+		assertCorrupt();
+		write(MAGIC, VERSION, colors.length, colors, CELLS - 1);
+		assertCorrupt();
+	}
+
+	/* 4 * size wraps around to the length of a 2 color file */
+	@Test
+	public void rejectsSizesThatOverflowTheHeader() throws IOException {
+		int[] colors = { 0xFF000000, 0xFFFFFFFF };
+		write(MAGIC, VERSION, (1 << 30) + colors.length, colors, CELLS);
+		assertCorrupt();
+	}
+}
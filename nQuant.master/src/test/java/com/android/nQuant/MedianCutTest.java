@@ -0,0 +1,73 @@
+package com.android.nQuant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class MedianCutTest {
+	private static float[][] clusters(final int clusters, final int perCluster, final float[] weights, final boolean equalWeights) {
+		float[][] coords = new float[3][clusters * perCluster];
+		Random random = new Random(1);
+		for (int i = 0; i < clusters * perCluster; ++i) {
+			final int c = i % clusters;
+			coords[0][i] = 40 * c + random.nextFloat();
+			coords[1][i] = 255 - 40 * c + random.nextFloat();
+			coords[2][i] = (c & 1) * 200 + random.nextFloat();
+			weights[i] = equalWeights ? 1 : 1 + random.nextInt(10);
+		}
+		return coords;
+	}
+
+	/* With equal weights every median of 4 equal clusters falls between two of them */
+	@Test
+	public void separatesClusters() {
+		final int clusters = 4, perCluster = 50;
+		float[] weights = new float[clusters * perCluster];
+		int[] boxOf = MedianCut.partition(clusters(clusters, perCluster, weights, true), weights, clusters);
+		for (int i = 0; i < boxOf.length; ++i)
+			assertEquals("bin " + i, boxOf[i % clusters], boxOf[i]);
+		for (int c = 1; c < clusters; ++c) {
+			for (int d = 0; d < c; ++d)
+				assertTrue(boxOf[c] != boxOf[d]);
+		}
+	}
+
+	@Test
+	public void numbersBoxesByFirstBin() {
+		float[] weights = new float[1000];
+		int[] boxOf = MedianCut.partition(clusters(10, 100, weights, false), weights, 37);
+		int next = 0;
+		for (int box : boxOf) {
+			assertTrue(box <= next);
+			if (box == next)
+				++next;
+		}
+		assertTrue(next <= 37);
+	}
+
+	@Test
+	public void stopsWhenBoxesCannotBeSplit() {
+		float[][] coords = new float[3][20];
+		float[] weights = new float[20];
+		for (int i = 0; i < weights.length; ++i) {
+			coords[0][i] = coords[1][i] = coords[2][i] = i < 10 ? 10 : 200;
+			weights[i] = 1;
+		}
+		int[] boxOf = MedianCut.partition(coords, weights, 8);
+		for (int i = 0; i < boxOf.length; ++i)
+			assertEquals(i < 10 ? 0 : 1, boxOf[i]);
+	}
+
+	@Test
+	public void splitsAtTheWeightedMedian() {
+		float[][] coords = { { 0, 1, 2, 3 } };
+		float[] weights = { 1, 1, 1, 100 };
+		int[] boxOf = MedianCut.partition(coords, weights, 2);
+		assertEquals(0, boxOf[0]);
+		assertEquals(0, boxOf[2]);
+		assertEquals(1, boxOf[3]);
+	}
+}
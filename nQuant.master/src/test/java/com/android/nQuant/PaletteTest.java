@@ -0,0 +1,94 @@
+package com.android.nQuant;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+public class PaletteTest {
+	private static final int MAGIC = 0x4E515031;
+
+	private static byte[] toBytes(Palette palette) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		palette.write(out);
+		return out.toByteArray();
+	}
+
+	private static byte[] header(int magic, int size, int colors) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(magic);
+		data.writeInt(size);
+		for (int i = 0; i < colors; ++i)
+			data.writeInt(0xFF000000 | i);
+		return out.toByteArray();
+	}
+
+	private static void assertCorrupt(byte[] bytes, Class<? extends IOException> expected) {
+		try {
+			Palette.read(new ByteArrayInputStream(bytes));
+			fail("read a corrupt palette");
+		} catch (IOException e) {
+			assertEquals(expected, e.getClass());
+		}
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		Palette palette = new Palette(new int[] { 0x00FFFFFF, 0xFF000000, 0xFF808080, 0x7F102030 }, .3, .6, .1, .25, .75, .125);
+		Palette read = Palette.read(new ByteArrayInputStream(toBytes(palette)));
+		assertArrayEquals(palette.getColors(), read.getColors());
+		assertEquals(palette.PR, read.PR, 0);
+		assertEquals(palette.PG, read.PG, 0);
+		assertEquals(palette.PB, read.PB, 0);
+		assertEquals(palette.PA, read.PA, 0);
+		assertEquals(palette.ratio, read.ratio, 0);
+		assertEquals(palette.weight, read.weight, 0);
+	}
+
+	@Test
+	public void roundTripOfLargePalette() throws IOException {
+		int[] colors = new int[1000];
+		for (int i = 0; i < colors.length; ++i)
+			colors[i] = 0xFF000000 | i * 997;
+		Palette read = Palette.read(new ByteArrayInputStream(toBytes(new Palette(colors))));
+		assertArrayEquals(colors, read.getColors());
+	}
+
+	@Test
+	public void rejectsWrongMagic() throws IOException {
+		assertCorrupt(header(0x12345678, 2, 2), IOException.class);
+	}
+
+	@Test
+	public void rejectsNegativeSize() throws IOException {
+		assertCorrupt(header(MAGIC, -1, 0), IOException.class);
+	}
+
+	@Test
+	public void rejectsSizeBeyondShortIndices() throws IOException {
+		assertCorrupt(header(MAGIC, Short.MAX_VALUE + 1, 0), IOException.class);
+		assertCorrupt(header(MAGIC, Integer.MAX_VALUE, 4), IOException.class);
+	}
+
+	/* A count the stream does not hold runs out of data instead of allocating for it */
+	@Test
+	public void rejectsSizeBeyondTheStream() throws IOException {
+		assertCorrupt(header(MAGIC, Short.MAX_VALUE, 4), EOFException.class);
+	}
+
+	@Test
+	public void rejectsTruncatedWeights() throws IOException {
+		byte[] bytes = toBytes(new Palette(new int[] { 0xFF000000, 0xFFFFFFFF }));
+		byte[] truncated = new byte[bytes.length - 4];
+		System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+		assertCorrupt(truncated, EOFException.class);
+	}
+}